@@ -16,13 +16,103 @@
 
 package org.purl.sword.server.fedora.fedoraObjects;
 
+import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.Namespace;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Relationships with support for literal values.
+ * <p/>
+ * Relationships are kept as statements in an insertion-ordered set, so adding the same
+ * relationship twice yields a single triple. RELS-EXT elements are only created when the
+ * document is requested.
+ */
 public class ExtendedRelationship extends Relationship {
+
+    private final Set<Statement> statements = new LinkedHashSet<>();
+
+    @Override
+    public void add(String relationshipType, String target) {
+        statements.add(new Statement(Kind.RELATIONSHIP, null, relationshipType, target));
+    }
+
+    @Override
+    public void addModel(String model) {
+        statements.add(new Statement(Kind.MODEL, null, null, model));
+    }
+
     public void addLiteral(Namespace namespace, String name, String literal) {
-        Element element = new Element(name, namespace);
-        element.setText(literal);
-        this._relationship.add(element);
+        statements.add(new Statement(Kind.LITERAL, namespace, name, literal));
+    }
+
+    /**
+     * @return Number of distinct relationships
+     */
+    public int size() {
+        return statements.size();
     }
+
+    @Override
+    public Document toXML() {
+        this._relationship.clear();
+        for (Statement statement : statements) {
+            switch (statement.kind) {
+                case RELATIONSHIP:
+                    super.add(statement.name, statement.object);
+                    break;
+                case MODEL:
+                    super.addModel(statement.object);
+                    break;
+                case LITERAL:
+                    Element element = new Element(statement.name, statement.namespace);
+                    element.setText(statement.object);
+                    this._relationship.add(element);
+            }
+        }
+        return super.toXML();
+    }
+
+    private enum Kind {RELATIONSHIP, MODEL, LITERAL}
+
+    private static final class Statement {
+        private final Kind kind;
+        private final Namespace namespace;
+        private final String name;
+        private final String object;
+
+        Statement(Kind kind, Namespace namespace, String name, String object) {
+            this.kind = kind;
+            this.namespace = namespace;
+            this.name = name;
+            this.object = object;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Statement)) return false;
+            final Statement other = (Statement) o;
+            return kind == other.kind
+                    && equal(namespace, other.namespace)
+                    && equal(name, other.name)
+                    && equal(object, other.object);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = kind.hashCode();
+            result = 31 * result + (namespace == null ? 0 : namespace.hashCode());
+            result = 31 * result + (name == null ? 0 : name.hashCode());
+            result = 31 * result + (object == null ? 0 : object.hashCode());
+            return result;
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return (a == null) ? b == null : a.equals(b);
+        }
+    }
+
 }
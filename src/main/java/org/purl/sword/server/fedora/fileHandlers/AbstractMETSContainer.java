@@ -0,0 +1,380 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.fedoraObjects.*;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.purl.sword.server.fedora.fedoraObjects.State.DELETED;
+import static org.purl.sword.server.fedora.fedoraObjects.State.INACTIVE;
+
+/**
+ * Builds Fedora datastreams and Dublin Core from the sections of a METS deposit.
+ * <p/>
+ * Subclasses decide how the METS document is read and how the relevant sections are located.
+ * Sections, file entries and the datastreams built from them are looked up once and then
+ * cached, so repeated calls to the accessors return the same datastream objects.
+ */
+public abstract class AbstractMETSContainer {
+
+    public static final Pattern PATTERN = Pattern.compile("^[a-z][a-z0-9\\+\\.\\-]*\\:.*", Pattern.CASE_INSENSITIVE);
+    public static final String DS_ID_SLUBINFO = "SLUB-INFO";
+    public static final String DS_ID_SLUBINFO_LABEL = "SLUB Administrative Metadata";
+    private static final String DS_ID_MODS = "MODS";
+    private static final String DS_ID_MODS_LABEL = "Object Bibliographic Metadata";
+    private static final String DS_ID_QUCOSAXML = "QUCOSA-XML";
+    private static final String DS_ID_QUCOSAXML_LABEL = "Pristine Qucosa XML Metadata";
+    private static final String DS_MODS_MIME_TYPE = "application/mods+xml";
+
+    protected enum Section {MODS, SLUBINFO, QUCOSAXML}
+
+    private final Map<Section, Element> sectionIndex = new EnumMap<>(Section.class);
+    private final Map<Section, Datastream> sectionDatastreams = new EnumMap<>(Section.class);
+    private List<METSFile> fileList;
+    private Map<String, METSFile> fileIndex;
+    private List<Datastream> fileDatastreams;
+    private List<File> temporaryFiles;
+    private DublinCore dublinCore;
+    private StagedDeposit stagedDeposit;
+    private Map<String, File> prefetchedFiles = new HashMap<>();
+
+    /**
+     * @return Hex encoded digests of the deposit by algorithm name, see {@link MultiDigestInputStream}.
+     */
+    public abstract Map<String, String> getDigests();
+
+    public String getMd5() {
+        return getDigests().get(MultiDigestInputStream.MD5);
+    }
+
+    /**
+     * @return Hex encoded digest of the deposit or null if the algorithm was not configured.
+     */
+    public String getDigest(String algorithm) {
+        return getDigests().get(algorithm.toUpperCase());
+    }
+
+    public abstract List<Element> getModsRelatedItems();
+
+    /**
+     * @return The section root element (e.g. <mods:mods>). Its grandparent has to be the
+     * enclosing <mets:mdWrap> element. Null if the section is not present.
+     */
+    protected abstract Element getSectionElement(Section section) throws SWORDException;
+
+    protected abstract List<METSFile> getFiles() throws SWORDException;
+
+    protected abstract String getRecordstatusValue() throws SWORDException;
+
+    protected abstract String getPrimaryTitle();
+
+    protected abstract List<Element> getIdentifierElements();
+
+    /**
+     * @return The staged deposit this container was read from, or null if the deposit wasn't staged.
+     */
+    public StagedDeposit getStagedDeposit() {
+        return stagedDeposit;
+    }
+
+    void setStagedDeposit(StagedDeposit stagedDeposit) {
+        this.stagedDeposit = stagedDeposit;
+    }
+
+    /**
+     * @return Local copies of remote file content by METS file ID.
+     */
+    public Map<String, File> getPrefetchedFiles() {
+        return prefetchedFiles;
+    }
+
+    /**
+     * Use local copies instead of remote URLs for the given file IDs. File datastreams
+     * built before are discarded and built again on next access.
+     */
+    void setPrefetchedFiles(Map<String, File> prefetchedFiles) {
+        this.prefetchedFiles = prefetchedFiles;
+        this.fileDatastreams = null;
+    }
+
+    public Datastream getModsDatastream() {
+        if (!sectionDatastreams.containsKey(Section.MODS)) {
+            try {
+                sectionDatastreams.put(Section.MODS,
+                        getDatastream(Section.MODS, DS_ID_MODS, DS_ID_MODS_LABEL, DS_MODS_MIME_TYPE));
+            } catch (SWORDException e) {
+                return null;
+            }
+        }
+        return sectionDatastreams.get(Section.MODS);
+    }
+
+    public Datastream getSlubInfoDatastream() {
+        if (!sectionDatastreams.containsKey(Section.SLUBINFO)) {
+            try {
+                sectionDatastreams.put(Section.SLUBINFO,
+                        getDatastream(Section.SLUBINFO, DS_ID_SLUBINFO, DS_ID_SLUBINFO_LABEL));
+            } catch (SWORDException e) {
+                return null;
+            }
+        }
+        return sectionDatastreams.get(Section.SLUBINFO);
+    }
+
+    public Datastream getQucosaXmlDatastream() {
+        if (!sectionDatastreams.containsKey(Section.QUCOSAXML)) {
+            try {
+                final Datastream datastream = getDatastream(Section.QUCOSAXML, DS_ID_QUCOSAXML, DS_ID_QUCOSAXML_LABEL);
+                if (datastream != null) {
+                    datastream.setState(INACTIVE);
+                }
+                sectionDatastreams.put(Section.QUCOSAXML, datastream);
+            } catch (SWORDException e) {
+                return null;
+            }
+        }
+        return sectionDatastreams.get(Section.QUCOSAXML);
+    }
+
+    public List<Datastream> getDatastreams() throws SWORDException {
+        LinkedList<Datastream> resultList = new LinkedList<>();
+        addIfNotNull(resultList, getSlubInfoDatastream());
+        addIfNotNull(resultList, getQucosaXmlDatastream());
+        addIfNotNull(resultList, getModsDatastream());
+        addIfNotNull(resultList, getAugmentedFileDatastreams());
+        return resultList;
+    }
+
+    public DublinCore getDublinCore() {
+        if (dublinCore == null) {
+            DublinCore dc = new DublinCore();
+            addIfNotNull(dc.getTitle(), getPrimaryTitle());
+            addIfNotNull(dc.getIdentifier(), getIdentifiers());
+            dublinCore = dc;
+        }
+        return dublinCore;
+    }
+
+    public List<Datastream> getAugmentedFileDatastreams() throws SWORDException {
+        if (fileDatastreams == null) {
+            fileDatastreams = buildFileDatastreams();
+        }
+        return new LinkedList<>(fileDatastreams);
+    }
+
+    public List<File> getTemporayFiles() throws SWORDException {
+        if (temporaryFiles == null) {
+            temporaryFiles = findTemporaryFiles();
+        }
+        return new LinkedList<>(temporaryFiles);
+    }
+
+    private List<Datastream> buildFileDatastreams() throws SWORDException {
+        List<Datastream> datastreamList = new LinkedList<>();
+        try {
+            for (METSFile file : files()) {
+                final String id = validateAndReturn("file ID", file.getId());
+
+                if (file.isDeleteRequest()) {
+                    final VoidDatastream voidDatastream = new VoidDatastream(id);
+                    voidDatastream.setState(DELETED);
+                    datastreamList.add(voidDatastream);
+                } else {
+                    Datastream ds;
+                    if (file.hasFLocat()) {
+                        final String href = validateAndReturn("file content URL", file.getHref());
+                        final boolean isFile = file.isLocalFile();
+                        final String mimetype = validateAndReturn("mime type", file.getMimetype());
+                        ds = buildDatastream(id, file, href, mimetype, isFile);
+                    } else {
+                        ds = new VoidDatastream(id);
+                        ds.setLabel(file.getLabel());
+                    }
+
+                    String digestType = emptyIfNull(file.getChecksumType());
+                    String digest = emptyIfNull(file.getChecksum());
+                    if (!(digestType.isEmpty() || digest.isEmpty())) {
+                        ds.setDigestType(digestType);
+                        ds.setDigest(digest);
+                    }
+
+                    datastreamList.add(new AugmentedDatastream(ds, file.hasArchivalValue(), file.isDownloadable()));
+                }
+            }
+        } catch (URISyntaxException e) {
+            throw new SWORDException("Invalid URL", e);
+        }
+        return datastreamList;
+    }
+
+    private List<File> findTemporaryFiles() throws SWORDException {
+        final List<File> filesMarkedForRemoval = new LinkedList<>();
+        try {
+            for (METSFile file : files()) {
+                if (!file.isDeleteRequest() && file.hasFLocat()) {
+                    validateAndReturn("file content URL", file.getHref());
+                    if (file.isLocalFile() && file.isTemporary()) {
+                        filesMarkedForRemoval.add(new File(file.getURI()));
+                    }
+                }
+            }
+        } catch (URISyntaxException ex) {
+            throw new SWORDException("Invalid URL", ex);
+        }
+        return filesMarkedForRemoval;
+    }
+
+    public State getRecordstatus() throws SWORDException {
+        final String rs = getRecordstatusValue();
+        if (rs != null) {
+            try {
+                return State.valueOf(rs);
+            } catch (IllegalArgumentException e) {
+                throw new SWORDException(
+                        String.format("Unknown METS record state: %s (none of `ACTIVE`, `INACTIVE` or `DELETED`) ", rs));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return File entry of the <mets:file> element with the given ID, or null if there is none.
+     */
+    METSFile getFile(String id) throws SWORDException {
+        files();
+        return fileIndex.get(id);
+    }
+
+    /**
+     * @return File entries of all <mets:file> elements in document order.
+     */
+    List<METSFile> getFileEntries() throws SWORDException {
+        return new LinkedList<>(files());
+    }
+
+    private List<METSFile> files() throws SWORDException {
+        if (fileList == null) {
+            final List<METSFile> files = getFiles();
+            final Map<String, METSFile> index = new HashMap<>();
+            for (METSFile file : files) {
+                if (!index.containsKey(file.getId())) {
+                    index.put(file.getId(), file);
+                }
+            }
+            fileIndex = index;
+            fileList = files;
+        }
+        return fileList;
+    }
+
+    private Element section(Section section) throws SWORDException {
+        if (!sectionIndex.containsKey(section)) {
+            sectionIndex.put(section, getSectionElement(section));
+        }
+        return sectionIndex.get(section);
+    }
+
+    private List<String> getIdentifiers() {
+        final List<Element> elements = getIdentifierElements();
+        if (elements == null) return null;
+        final List<String> identifiers = new LinkedList<>();
+        for (Element e : elements) {
+            final String type = e.getAttributeValue("type");
+            final String id = e.getTextTrim();
+            identifiers.add(hasProtocol(id) ? id : type + ":" + id);
+        }
+        return identifiers;
+    }
+
+    private boolean hasProtocol(String id) {
+        Matcher matcher = PATTERN.matcher(id);
+        return matcher.matches();
+    }
+
+    private Datastream getDatastream(Section section, String datastreamID, String datastreamLabel) throws SWORDException {
+        return getDatastream(section, datastreamID, datastreamLabel, null);
+    }
+
+    private Datastream getDatastream(Section section, String datastreamID, String datastreamLabel, String overrideMimetype)
+            throws SWORDException {
+        Datastream result = null;
+        Element el = section(section);
+        if (el != null) {
+            Document d = new Document((Element) el.clone());
+            result = new XMLInlineDatastream(datastreamID, d);
+            result.setLabel(datastreamLabel);
+            if (overrideMimetype != null) {
+                result.setMimeType(overrideMimetype);
+            } else {
+                result.setMimeType(el.getParentElement().getParentElement().getAttributeValue("MIMETYPE"));
+            }
+            String versioning = System.getProperty("datastream.versioning", "false");
+            result.setVersionable(Boolean.parseBoolean(versioning));
+        }
+        return result;
+    }
+
+    private <E> E validateAndReturn(String description, E value) throws SWORDException {
+        if (value != null) {
+            return value;
+        } else {
+            throw new SWORDException("Cannot obtain " + description);
+        }
+    }
+
+    private String emptyIfNull(String s) {
+        return (s == null) ? "" : s;
+    }
+
+    private Datastream buildDatastream(String id, METSFile file, String href, String mimetype, boolean isFile) {
+        Datastream datastream;
+        if (prefetchedFiles.containsKey(id)) {
+            LocalDatastream lds = new LocalDatastream(id, mimetype, prefetchedFiles.get(id).toURI().toString());
+            lds.setCleanup(true); // prefetched copy is not needed after upload
+            datastream = lds;
+        } else if (isFile) {
+            LocalDatastream lds = new LocalDatastream(id, mimetype, href);
+            lds.setCleanup(false); // no automatic cleanup
+            datastream = lds;
+        } else {
+            datastream = new ManagedDatastream(id, mimetype, href);
+        }
+        datastream.setLabel(file.getLabel());
+        return datastream;
+    }
+
+    private <E> void addIfNotNull(List<E> list, E e) {
+        if (e != null) list.add(e);
+    }
+
+    private <E> void addIfNotNull(List<E> list, List<E> es) {
+        if (es != null) list.addAll(es);
+    }
+
+}
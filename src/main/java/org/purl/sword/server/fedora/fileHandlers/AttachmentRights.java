@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.purl.sword.server.fedora.fedoraObjects.XMLInlineDatastream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Attachment rights of a SLUB-INFO datastream.
+ * <p/>
+ * Models the `slub:rights/slub:attachment` elements as a map from datastream reference to
+ * archival value and download options. The rights are read from SLUB-INFO once, changed and
+ * merged in memory and written back to SLUB-INFO in one go. Existing attachment elements are
+ * updated in place, so other attributes and content of these elements are kept.
+ * <p/>
+ * The options of an attachment are packed into the bits of a Byte. Since all Byte values are
+ * cached by the JVM, objects with many attachments only cost one map entry per attachment.
+ */
+class AttachmentRights {
+
+    private static final int ARCHIVAL_VALUE_GIVEN = 1;
+    private static final int HAS_ARCHIVAL_VALUE = 2;
+    private static final int DOWNLOADABLE_GIVEN = 4;
+    private static final int IS_DOWNLOADABLE = 8;
+
+    private final Map<String, Byte> attachments = new LinkedHashMap<>();
+    private final Map<String, Element> elements = new HashMap<>();
+    private boolean modified;
+
+    /**
+     * Read the attachment rights of a SLUB-INFO datastream. Attachment elements without
+     * `ref` attribute are ignored.
+     */
+    static AttachmentRights read(XMLInlineDatastream slubInfo) {
+        final AttachmentRights attachmentRights = new AttachmentRights();
+        final Element rights = slubInfo.toXML().getRootElement().getChild("rights", Namespaces.SLUB);
+        if (rights != null) {
+            for (Object o : rights.getChildren("attachment", Namespaces.SLUB)) {
+                final Element attachment = (Element) o;
+                final String ref = attachment.getAttributeValue("ref");
+                if (ref != null) {
+                    if (!attachmentRights.elements.containsKey(ref)) {
+                        attachmentRights.elements.put(ref, attachment);
+                    }
+                    attachmentRights.attachments.put(ref, pack(
+                            attachment.getAttributeValue("hasArchivalValue"),
+                            attachment.getAttributeValue("isDownloadable")));
+                }
+            }
+        }
+        return attachmentRights;
+    }
+
+    boolean contains(String ref) {
+        return attachments.containsKey(ref);
+    }
+
+    int size() {
+        return attachments.size();
+    }
+
+    /**
+     * @return Archival value of the attachment, or null if unknown
+     */
+    Boolean hasArchivalValue(String ref) {
+        return option(ref, ARCHIVAL_VALUE_GIVEN, HAS_ARCHIVAL_VALUE);
+    }
+
+    /**
+     * @return Download option of the attachment, or null if unknown
+     */
+    Boolean isDownloadable(String ref) {
+        return option(ref, DOWNLOADABLE_GIVEN, IS_DOWNLOADABLE);
+    }
+
+    void set(String ref, boolean hasArchivalValue, boolean isDownloadable) {
+        final Byte options = (byte) (ARCHIVAL_VALUE_GIVEN | DOWNLOADABLE_GIVEN
+                | (hasArchivalValue ? HAS_ARCHIVAL_VALUE : 0)
+                | (isDownloadable ? IS_DOWNLOADABLE : 0));
+        if (!options.equals(attachments.put(ref, options))) {
+            modified = true;
+        }
+    }
+
+    void remove(String ref) {
+        if (attachments.remove(ref) != null) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Add attachments that are only present in the given rights. Their elements are copied
+     * when the rights are written.
+     */
+    void addMissing(AttachmentRights from) {
+        for (Map.Entry<String, Byte> entry : from.attachments.entrySet()) {
+            if (!attachments.containsKey(entry.getKey())) {
+                attachments.put(entry.getKey(), entry.getValue());
+                if (from.elements.containsKey(entry.getKey())) {
+                    elements.put(entry.getKey(), from.elements.get(entry.getKey()));
+                }
+                modified = true;
+            }
+        }
+    }
+
+    boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Write the rights to the given SLUB-INFO datastream, if they have been modified since they
+     * were read. Options of existing attachment elements are updated in place, elements of removed
+     * attachments are removed and elements for new attachments are appended. Creates the
+     * `slub:rights` element if necessary.
+     */
+    void writeTo(XMLInlineDatastream slubInfo) {
+        if (!modified) return;
+
+        final Document info = slubInfo.toXML();
+        Element rights = info.getRootElement().getChild("rights", Namespaces.SLUB);
+        if (rights == null) {
+            rights = new Element("rights", Namespaces.SLUB);
+            info.getRootElement().addContent(rights);
+        }
+
+        final Set<String> present = new HashSet<>();
+        for (Object o : new ArrayList<Object>(rights.getChildren("attachment", Namespaces.SLUB))) {
+            final Element attachment = (Element) o;
+            final String ref = attachment.getAttributeValue("ref");
+            if (ref == null) continue;
+            if (attachments.containsKey(ref)) {
+                setOptions(attachment, attachments.get(ref));
+                present.add(ref);
+            } else {
+                rights.removeContent(attachment);
+            }
+        }
+
+        for (Map.Entry<String, Byte> entry : attachments.entrySet()) {
+            if (present.contains(entry.getKey())) continue;
+            final Element source = elements.get(entry.getKey());
+            final Element attachment = (source == null)
+                    ? new Element("attachment", Namespaces.SLUB)
+                    : (Element) source.clone();
+            attachment.setAttribute("ref", entry.getKey());
+            setOptions(attachment, entry.getValue());
+            rights.addContent(attachment);
+        }
+        modified = false;
+    }
+
+    private static void setOptions(Element attachment, int options) {
+        if ((options & ARCHIVAL_VALUE_GIVEN) != 0) {
+            attachment.setAttribute("hasArchivalValue", yesno((options & HAS_ARCHIVAL_VALUE) != 0));
+        } else {
+            attachment.removeAttribute("hasArchivalValue");
+        }
+        if ((options & DOWNLOADABLE_GIVEN) != 0) {
+            attachment.setAttribute("isDownloadable", yesno((options & IS_DOWNLOADABLE) != 0));
+        } else {
+            attachment.removeAttribute("isDownloadable");
+        }
+    }
+
+    private Boolean option(String ref, int given, int value) {
+        final Byte options = attachments.get(ref);
+        if (options == null || (options & given) == 0) return null;
+        return (options & value) != 0;
+    }
+
+    private static Byte pack(String hasArchivalValue, String isDownloadable) {
+        int options = 0;
+        if (hasArchivalValue != null) {
+            options |= ARCHIVAL_VALUE_GIVEN | ("yes".equals(hasArchivalValue) ? HAS_ARCHIVAL_VALUE : 0);
+        }
+        if (isDownloadable != null) {
+            options |= DOWNLOADABLE_GIVEN | ("yes".equals(isDownloadable) ? IS_DOWNLOADABLE : 0);
+        }
+        return (byte) options;
+    }
+
+    private static String yesno(boolean b) {
+        return b ? "yes" : "no";
+    }
+
+}
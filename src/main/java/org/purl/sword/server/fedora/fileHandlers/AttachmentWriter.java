@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.fedoraObjects.Datastream;
+import org.purl.sword.server.fedora.fedoraObjects.VoidDatastream;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.purl.sword.server.fedora.fedoraObjects.State.DELETED;
+
+/**
+ * Writes attachment datastreams of an update to the repository.
+ * <p/>
+ * With a parallelism of one, attachments are written one after another on the calling thread.
+ * Otherwise up to that many attachments of the object are written at the same time, using a pool of
+ * `attachment.write.threads` threads (default 8) shared by all requests. Either way all writes are
+ * finished when writeAll() returns.
+ */
+class AttachmentWriter {
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Integer.getInteger("attachment.write.threads", 8),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "attachment-writer-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private AttachmentWriter() {
+    }
+
+    /**
+     * @throws SWORDException on the first failure when writing sequentially, or naming every failed
+     *                        datastream when writing in parallel
+     */
+    static void writeAll(final DatastreamLookupCache cache, List<Datastream> attachments, int parallelism)
+            throws SWORDException {
+        if (parallelism <= 1 || attachments.size() <= 1) {
+            for (Datastream attachment : attachments) {
+                write(cache, attachment);
+            }
+            return;
+        }
+
+        final CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        final Map<Future<Void>, String> running = new LinkedHashMap<>();
+        final Map<String, Exception> failures = new LinkedHashMap<>();
+        final Iterator<Datastream> pending = attachments.iterator();
+        try {
+            while (running.size() < parallelism && pending.hasNext()) {
+                submit(completionService, running, cache, pending.next());
+            }
+            while (!running.isEmpty()) {
+                final Future<Void> done = completionService.take();
+                final String dsid = running.remove(done);
+                try {
+                    done.get();
+                } catch (ExecutionException e) {
+                    failures.put(dsid, (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e);
+                }
+                if (pending.hasNext()) {
+                    submit(completionService, running, cache, pending.next());
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<Void> future : running.keySet()) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new SWORDException("Interrupted while writing attachment datastreams", e);
+        }
+
+        if (!failures.isEmpty()) {
+            StringBuilder sb = new StringBuilder("Cannot write ")
+                    .append(failures.size()).append(" attachment datastream(s):");
+            for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+                sb.append(' ').append(failure.getKey()).append(": ").append(failure.getValue().getMessage()).append(';');
+            }
+            throw new SWORDException(sb.toString(), failures.values().iterator().next());
+        }
+    }
+
+    static void write(DatastreamLookupCache cache, Datastream attachment) throws SWORDException {
+        final boolean isVoidDatastream = attachment instanceof VoidDatastream;
+        final boolean toBeDeleted = isVoidDatastream && DELETED.equals(attachment.getState());
+
+        if (toBeDeleted) {
+            if (cache.hasDatastream(attachment.getId())) {
+                cache.setDatastreamState(attachment.getId(), DELETED);
+            }
+        } else {
+            // assuming content or property modification
+            if (cache.hasDatastream(attachment.getId())) {
+                if (skipUnchangedContent() && !isVoidDatastream && cache.hasSameContent(attachment)) {
+                    // stored content has the same checksum, only send changed properties
+                    if (!cache.hasSameProperties(attachment)) {
+                        cache.modifyDatastream(withoutContent(attachment));
+                    }
+                } else {
+                    cache.modifyDatastream(attachment);
+                }
+            } else {
+                cache.addDatastream(attachment);
+            }
+        }
+    }
+
+    private static boolean skipUnchangedContent() {
+        return Boolean.parseBoolean(System.getProperty("datastream.skip.unchanged", "false"));
+    }
+
+    private static Datastream withoutContent(Datastream attachment) {
+        final VoidDatastream properties = new VoidDatastream(attachment.getId());
+        properties.setLabel(attachment.getLabel());
+        properties.setMimeType(attachment.getMimeType());
+        if (attachment.getState() != null) {
+            properties.setState(attachment.getState());
+        }
+        return properties;
+    }
+
+    private static void submit(CompletionService<Void> completionService, Map<Future<Void>, String> running,
+                               final DatastreamLookupCache cache, final Datastream attachment) {
+        running.put(completionService.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                write(cache, attachment);
+                return null;
+            }
+        }), attachment.getId());
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.Attribute;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Text;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Content hash of XML documents that ignores differences without meaning.
+ * <p/>
+ * Elements and attributes are identified by namespace URI and local name, so namespace prefixes
+ * and the placement of namespace declarations don't matter. Attribute order is ignored. Text is
+ * whitespace normalized and whitespace-only text is dropped. Comments and processing instructions
+ * are not part of the hash.
+ */
+final class CanonicalXml {
+
+    private CanonicalXml() {
+    }
+
+    /**
+     * @return Hex encoded SHA-256 hash of the canonical form, or null for a null document.
+     */
+    static String hash(Document document) {
+        if (document == null || !document.hasRootElement()) return null;
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 has to be supported", e);
+        }
+        update(md, document.getRootElement());
+        return Hex.encode(md.digest());
+    }
+
+    private static void update(MessageDigest md, Element element) {
+        update(md, "<{" + element.getNamespaceURI() + "}" + element.getName());
+
+        final TreeMap<String, String> attributes = new TreeMap<>();
+        for (Object o : element.getAttributes()) {
+            final Attribute a = (Attribute) o;
+            attributes.put("{" + a.getNamespaceURI() + "}" + a.getName(), a.getValue());
+        }
+        for (String name : attributes.keySet()) {
+            update(md, " " + name + "=\"" + attributes.get(name) + "\"");
+        }
+        update(md, ">");
+
+        final StringBuilder text = new StringBuilder();
+        for (Object o : (List<?>) element.getContent()) {
+            if (o instanceof Element) {
+                updateText(md, text);
+                update(md, (Element) o);
+            } else if (o instanceof Text) {
+                text.append(((Text) o).getText());
+            }
+        }
+        updateText(md, text);
+        update(md, "</>");
+    }
+
+    private static void updateText(MessageDigest md, StringBuilder text) {
+        final String normalized = Text.normalizeString(text.toString());
+        if (!normalized.isEmpty()) {
+            update(md, normalized);
+        }
+        text.setLength(0);
+    }
+
+    private static void update(MessageDigest md, String s) {
+        try {
+            final byte[] bytes = s.getBytes("UTF-8");
+            md.update(intBytes(bytes.length));
+            md.update(bytes);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 has to be supported", e);
+        }
+    }
+
+    private static byte[] intBytes(int i) {
+        return new byte[]{(byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+    }
+
+}
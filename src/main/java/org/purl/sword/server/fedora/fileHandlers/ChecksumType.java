@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.log4j.Logger;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps METS CHECKSUMTYPE values to Java message digest algorithm names.
+ * <p/>
+ * MD5 and the SHA family are computed. The remaining METS types (HAVAL, TIGER, WHIRLPOOL, CRC32,
+ * Adler-32, MNP) have no standard message digest; files using them are not verified and a warning
+ * is logged. Values outside the METS vocabulary are rejected.
+ */
+final class ChecksumType {
+
+    private static final Logger log = Logger.getLogger(ChecksumType.class);
+
+    // METS name (upper case) to algorithm name, null if it cannot be computed
+    private static final Map<String, String> ALGORITHMS = new HashMap<>();
+
+    static {
+        ALGORITHMS.put("MD5", "MD5");
+        ALGORITHMS.put("SHA-1", "SHA-1");
+        ALGORITHMS.put("SHA-256", "SHA-256");
+        ALGORITHMS.put("SHA-384", "SHA-384");
+        ALGORITHMS.put("SHA-512", "SHA-512");
+        for (String type : new String[]{"HAVAL", "TIGER", "WHIRLPOOL", "CRC32", "ADLER-32", "MNP"}) {
+            ALGORITHMS.put(type, null);
+        }
+    }
+
+    private ChecksumType() {
+    }
+
+    /**
+     * @return Message digest algorithm for the file's CHECKSUMTYPE or null if it cannot be computed
+     * @throws NoSuchAlgorithmException if CHECKSUMTYPE is not a METS checksum type
+     */
+    static String algorithm(METSFile file) throws NoSuchAlgorithmException {
+        final String type = file.getChecksumType().toUpperCase();
+        if (!ALGORITHMS.containsKey(type)) {
+            throw new NoSuchAlgorithmException("Unsupported checksum type " + file.getChecksumType());
+        }
+        final String algorithm = ALGORITHMS.get(type);
+        if (algorithm == null) {
+            log.warn(String.format("Cannot compute %s checksum, skipping verification of %s",
+                    file.getChecksumType(), file.getId()));
+        }
+        return algorithm;
+    }
+
+}
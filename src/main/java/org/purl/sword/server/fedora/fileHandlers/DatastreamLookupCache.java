@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.fedoraObjects.Datastream;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraRepository;
+import org.purl.sword.server.fedora.fedoraObjects.InlineDatastream;
+import org.purl.sword.server.fedora.fedoraObjects.State;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memoizes datastream lookups of a single repository object for the duration of one request.
+ * <p/>
+ * Existence checks and fetched datastreams are remembered, so repeated lookups of the same
+ * datastream don't go to the repository again. Writes through the cache keep the remembered
+ * state current.
+ * <p/>
+ * This does not remove the per-datastream round trips: FedoraRepository has no call listing the
+ * datastreams of an object, so the first check of every DSID still asks the repository. An update
+ * with N attachments costs at least N existence checks.
+ * <p/>
+ * If `compareStored` is set, a canonical hash of fetched inline datastreams is kept for isUnchanged().
+ */
+class DatastreamLookupCache {
+
+    private final FedoraRepository repository;
+    private final String pid;
+    private final boolean compareStored;
+    private final ConcurrentMap<String, Boolean> existing = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Datastream> fetched = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, StoredVersion> storedVersions = new ConcurrentHashMap<>();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final AtomicInteger skippedWrites = new AtomicInteger();
+
+    DatastreamLookupCache(FedoraRepository repository, String pid, boolean compareStored) {
+        this.repository = repository;
+        this.pid = pid;
+        this.compareStored = compareStored;
+    }
+
+    String getPid() {
+        return pid;
+    }
+
+    boolean hasDatastream(String dsid) throws SWORDException {
+        Boolean exists = existing.get(dsid);
+        if (exists == null) {
+            lookups.incrementAndGet();
+            exists = repository.hasDatastream(pid, dsid);
+            existing.put(dsid, exists);
+        }
+        return exists;
+    }
+
+    /**
+     * @return The datastream as stored in the repository, or null if it cannot be obtained.
+     */
+    Datastream getDatastream(String dsid) throws SWORDException {
+        Datastream datastream = fetched.get(dsid);
+        if (datastream == null) {
+            lookups.incrementAndGet();
+            datastream = repository.getDatastream(pid, dsid);
+            if (datastream != null) {
+                if (compareStored && datastream instanceof InlineDatastream) {
+                    storedVersions.put(dsid, new StoredVersion(datastream));
+                }
+                fetched.put(dsid, datastream);
+                existing.put(dsid, true);
+            }
+        }
+        return datastream;
+    }
+
+    /**
+     * Compare an inline datastream with the stored version, ignoring differences in XML formatting.
+     * The stored version is captured when fetched, so changes made to the fetched datastream
+     * object afterwards count as changes.
+     *
+     * @return True if content and properties of the stored datastream are the same. Always false
+     * if the cache doesn't compare stored versions.
+     */
+    boolean isUnchanged(Datastream datastream) throws SWORDException {
+        if (!(datastream instanceof InlineDatastream)) return false;
+        getDatastream(datastream.getId());
+        final StoredVersion stored = storedVersions.get(datastream.getId());
+        if (stored == null) return false;
+        final boolean unchanged = stored.matches(datastream);
+        if (unchanged) {
+            skippedWrites.incrementAndGet();
+        }
+        return unchanged;
+    }
+
+    /**
+     * Compare the digest of a datastream with the digest of the stored datastream.
+     *
+     * @return True if both digests are given, use the same algorithm and are equal.
+     */
+    boolean hasSameContent(Datastream datastream) throws SWORDException {
+        if (isEmpty(datastream.getDigest()) || isEmpty(datastream.getDigestType())) return false;
+        final Datastream stored = getDatastream(datastream.getId());
+        if (stored == null || isEmpty(stored.getDigest()) || isEmpty(stored.getDigestType())) return false;
+        return algorithmName(datastream.getDigestType()).equals(algorithmName(stored.getDigestType()))
+                && datastream.getDigest().equalsIgnoreCase(stored.getDigest());
+    }
+
+    /**
+     * @return True if label, MIME type and state of the datastream, where given, equal the stored ones.
+     */
+    boolean hasSameProperties(Datastream datastream) throws SWORDException {
+        final Datastream stored = getDatastream(datastream.getId());
+        return stored != null
+                && sameIfGiven(datastream.getLabel(), stored.getLabel())
+                && sameIfGiven(datastream.getMimeType(), stored.getMimeType())
+                && sameIfGiven(datastream.getState(), stored.getState());
+    }
+
+    void addDatastream(Datastream datastream) throws SWORDException {
+        repository.addDatastream(pid, datastream, null);
+        written(datastream.getId());
+    }
+
+    void modifyDatastream(Datastream datastream) throws SWORDException {
+        repository.modifyDatastream(pid, datastream, null);
+        written(datastream.getId());
+    }
+
+    void setDatastreamState(String dsid, State state) throws SWORDException {
+        repository.setDatastreamState(pid, dsid, state, null);
+        written(dsid);
+    }
+
+    /**
+     * @return Number of lookups that went to the repository.
+     */
+    int getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * @return Number of writes found to be unnecessary by isUnchanged().
+     */
+    int getSkippedWrites() {
+        return skippedWrites.get();
+    }
+
+    private static boolean isEmpty(String s) {
+        return s == null || s.isEmpty();
+    }
+
+    private static boolean sameIfGiven(Object outgoing, Object stored) {
+        return outgoing == null || outgoing.equals(stored);
+    }
+
+    /**
+     * Normalize digest algorithm names, so that e.g. `SHA-256` and `sha256` are considered equal.
+     */
+    private static String algorithmName(String digestType) {
+        return digestType.replace("-", "").toUpperCase();
+    }
+
+    private void written(String dsid) {
+        existing.put(dsid, true);
+        fetched.remove(dsid);
+        storedVersions.remove(dsid);
+    }
+
+    private static class StoredVersion {
+        private final String hash;
+        private final String label;
+        private final String mimeType;
+        private final State state;
+
+        StoredVersion(Datastream datastream) {
+            this.hash = CanonicalXml.hash(((InlineDatastream) datastream).toXML());
+            this.label = datastream.getLabel();
+            this.mimeType = datastream.getMimeType();
+            this.state = datastream.getState();
+        }
+
+        boolean matches(Datastream datastream) {
+            return hash != null
+                    && sameIfGiven(datastream.getLabel(), label)
+                    && sameIfGiven(datastream.getMimeType(), mimeType)
+                    && sameIfGiven(datastream.getState(), state)
+                    && hash.equals(CanonicalXml.hash(((InlineDatastream) datastream).toXML()));
+        }
+    }
+
+}
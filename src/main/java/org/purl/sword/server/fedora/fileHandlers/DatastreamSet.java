@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.purl.sword.server.fedora.fedoraObjects.AugmentedDatastream;
+import org.purl.sword.server.fedora.fedoraObjects.Datastream;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Datastreams of a deposit with lookup by DSID.
+ * <p/>
+ * Datastreams are kept in an array in deposit order. Lookup by DSID and the list of attachment
+ * datastreams (DSID prefix `ATT-`) are served from an index that is rebuilt on first use after
+ * the set has been modified. Attribute wrappers are removed when datastreams are added, their
+ * archival value and download options are kept in a side table.
+ * <p/>
+ * The index is not aware of DSIDs changed on the datastream objects themselves; call reindex()
+ * after renaming datastreams.
+ */
+class DatastreamSet extends AbstractList<Datastream> implements RandomAccess {
+
+    static final String ATTACHMENT_PREFIX = "ATT-";
+
+    private final ArrayList<Datastream> datastreams;
+    private final Map<Datastream, FileAttributes> fileAttributes = new IdentityHashMap<>();
+    private final Map<String, Datastream> byId = new HashMap<>();
+    private final List<Datastream> attachments = new ArrayList<>();
+    private boolean indexed;
+
+    DatastreamSet(Collection<Datastream> datastreams) {
+        this.datastreams = new ArrayList<>(datastreams.size());
+        for (Datastream ds : datastreams) {
+            this.datastreams.add(unwrap(ds));
+        }
+    }
+
+    /**
+     * @return The given list if it already is a DatastreamSet, otherwise an indexed copy
+     */
+    static DatastreamSet of(List<Datastream> datastreams) {
+        return (datastreams instanceof DatastreamSet)
+                ? (DatastreamSet) datastreams
+                : new DatastreamSet(datastreams);
+    }
+
+    @Override
+    public Datastream get(int index) {
+        return datastreams.get(index);
+    }
+
+    @Override
+    public int size() {
+        return datastreams.size();
+    }
+
+    @Override
+    public Datastream set(int index, Datastream ds) {
+        final Datastream unwrapped = unwrap(ds);
+        final Datastream previous = datastreams.set(index, unwrapped);
+        if (previous != unwrapped) {
+            fileAttributes.remove(previous);
+            indexed = false;
+        }
+        return previous;
+    }
+
+    @Override
+    public void add(int index, Datastream ds) {
+        final Datastream unwrapped = unwrap(ds);
+        datastreams.add(index, unwrapped);
+        if (indexed && index == datastreams.size() - 1) {
+            index(unwrapped);
+        } else {
+            indexed = false;
+        }
+        modCount++;
+    }
+
+    @Override
+    public Datastream remove(int index) {
+        final Datastream removed = datastreams.remove(index);
+        fileAttributes.remove(removed);
+        indexed = false;
+        modCount++;
+        return removed;
+    }
+
+    /**
+     * @return The first datastream with the given DSID, or null
+     */
+    Datastream get(String dsid) {
+        ensureIndexed();
+        return byId.get(dsid);
+    }
+
+    boolean contains(String dsid) {
+        ensureIndexed();
+        return byId.containsKey(dsid);
+    }
+
+    /**
+     * @return Attachment datastreams in deposit order
+     */
+    List<Datastream> getAttachments() {
+        ensureIndexed();
+        return Collections.unmodifiableList(attachments);
+    }
+
+    /**
+     * @return Archival value and download options given for a file datastream, or null for
+     * datastreams without these attributes
+     */
+    FileAttributes getFileAttributes(Datastream ds) {
+        return fileAttributes.get(ds);
+    }
+
+    /**
+     * Invalidate the DSID index, needed after DSIDs have been changed.
+     */
+    void reindex() {
+        indexed = false;
+    }
+
+    private void ensureIndexed() {
+        if (indexed) return;
+        byId.clear();
+        attachments.clear();
+        for (Datastream ds : datastreams) {
+            index(ds);
+        }
+        indexed = true;
+    }
+
+    private void index(Datastream ds) {
+        final String id = ds.getId();
+        if (id == null) return;
+        if (!byId.containsKey(id)) {
+            byId.put(id, ds);
+        }
+        if (id.startsWith(ATTACHMENT_PREFIX)) {
+            attachments.add(ds);
+        }
+    }
+
+    private Datastream unwrap(Datastream ds) {
+        if (ds instanceof AugmentedDatastream) {
+            final AugmentedDatastream augmented = (AugmentedDatastream) ds;
+            final Datastream wrapped = augmented.getWrappedDatastream();
+            fileAttributes.put(wrapped,
+                    new FileAttributes(augmented.isHasArchivalValue(), augmented.isDownloadable()));
+            return wrapped;
+        }
+        return ds;
+    }
+
+    static final class FileAttributes {
+        private final boolean hasArchivalValue;
+        private final boolean downloadable;
+
+        FileAttributes(boolean hasArchivalValue, boolean downloadable) {
+            this.hasArchivalValue = hasArchivalValue;
+            this.downloadable = downloadable;
+        }
+
+        boolean hasArchivalValue() {
+            return hasArchivalValue;
+        }
+
+        boolean isDownloadable() {
+            return downloadable;
+        }
+    }
+
+}
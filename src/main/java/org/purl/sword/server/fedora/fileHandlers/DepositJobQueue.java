@@ -0,0 +1,379 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.log4j.Logger;
+import org.purl.sword.base.SWORDException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the repository part of deposits in the background.
+ * <p/>
+ * Every job is recorded in a journal directory, one file per job, before it is accepted. The record
+ * is updated when the job starts and when it completes or fails, so the outcome of a job can be
+ * looked up after the request that submitted it has returned. Jobs are run by
+ * `deposit.async.workers` threads (default 2), at most `deposit.async.queue.size` jobs (default 100)
+ * wait for a worker. If the queue is full, jobs are rejected.
+ * <p/>
+ * Records of completed and failed jobs are removed after `deposit.async.journal.retention`
+ * milliseconds (default 7 days). Expired records are pruned on start and, while jobs are being
+ * run, at most once an hour.
+ * <p/>
+ * Repository credentials are not written to the journal. Jobs that were still queued or running when
+ * the service stopped are therefore recorded as failed on the next start and have to be deposited again.
+ */
+public class DepositJobQueue {
+
+    public enum Status {QUEUED, RUNNING, COMPLETED, FAILED}
+
+    /**
+     * Repository operations of a deposit.
+     */
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private static final Logger log = Logger.getLogger(DepositJobQueue.class);
+    private static final String JOB_FILE_SUFFIX = ".job";
+    private static final long PRUNE_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    private static DepositJobQueue instance;
+
+    private final File journalDir;
+    private final long retention;
+    private final AtomicLong nextPrune = new AtomicLong();
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, Job> activeJobs = new ConcurrentHashMap<>();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    DepositJobQueue(File journalDir, int workers, int queueSize, long retention) {
+        this.journalDir = journalDir;
+        this.retention = retention;
+        if (!journalDir.isDirectory() && !journalDir.mkdirs()) {
+            log.warn("Cannot create deposit job journal directory " + journalDir.getAbsolutePath());
+        }
+        this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "deposit-job-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        recover();
+    }
+
+    /**
+     * @return The shared job queue, configured from system properties on first use.
+     */
+    public static synchronized DepositJobQueue getInstance() {
+        if (instance == null) {
+            final String stagingDir = System.getProperty("deposit.staging.dir", System.getProperty("java.io.tmpdir"));
+            instance = new DepositJobQueue(
+                    new File(System.getProperty("deposit.async.journal.dir", new File(stagingDir, "deposit-jobs").getPath())),
+                    Integer.getInteger("deposit.async.workers", 2),
+                    Integer.getInteger("deposit.async.queue.size", 100),
+                    Long.getLong("deposit.async.journal.retention", TimeUnit.DAYS.toMillis(7)));
+        }
+        return instance;
+    }
+
+    /**
+     * Record a new job and queue it for execution.
+     *
+     * @throws SWORDException if the job cannot be recorded or too many jobs are waiting
+     */
+    Job submit(String type, String pid, String username, final Task task) throws SWORDException {
+        final Job job = new Job(UUID.randomUUID().toString(), type, pid, username);
+        try {
+            write(job);
+        } catch (IOException e) {
+            throw new SWORDException("Cannot record deposit job", e);
+        }
+        activeJobs.put(job.getId(), job);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(job, task);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            activeJobs.remove(job.getId());
+            journalFile(job.getId()).delete();
+            throw new SWORDException("Too many deposits waiting to be processed, please try again later", e);
+        }
+        return job;
+    }
+
+    /**
+     * @return The current state of a job, or null if there is no such job.
+     */
+    public Job getJob(String id) {
+        final Job job = activeJobs.get(id);
+        if (job != null) return job;
+        final File file = journalFile(id);
+        if (!file.isFile()) return null;
+        try {
+            return read(file);
+        } catch (IOException e) {
+            log.warn("Cannot read deposit job " + file.getAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    public int getPending() {
+        return activeJobs.size();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private void execute(Job job, Task task) {
+        update(job, Status.RUNNING, null);
+        try {
+            task.run();
+            update(job, Status.COMPLETED, null);
+            completed.incrementAndGet();
+        } catch (Exception e) {
+            log.error("Deposit job " + job.getId() + " for " + job.getPid() + " failed", e);
+            update(job, Status.FAILED, e.getMessage());
+            failed.incrementAndGet();
+        } finally {
+            activeJobs.remove(job.getId());
+            pruneIfDue();
+        }
+    }
+
+    private void pruneIfDue() {
+        final long now = System.currentTimeMillis();
+        final long due = nextPrune.get();
+        if (now >= due && nextPrune.compareAndSet(due, now + Math.min(retention, PRUNE_INTERVAL))) {
+            prune();
+        }
+    }
+
+    /**
+     * Remove records of finished jobs that have not been updated within the retention period.
+     */
+    private void prune() {
+        final File[] files = journalDir.listFiles();
+        if (files == null) return;
+        final long expired = System.currentTimeMillis() - retention;
+        int removed = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(JOB_FILE_SUFFIX) || file.lastModified() >= expired) continue;
+            try {
+                final Job job = read(file);
+                if ((job.getStatus() == Status.COMPLETED || job.getStatus() == Status.FAILED)
+                        && job.getUpdated() < expired && file.delete()) {
+                    removed++;
+                }
+            } catch (IOException e) {
+                log.warn("Cannot read deposit job " + file.getAbsolutePath(), e);
+            }
+        }
+        if (removed > 0) {
+            log.info(String.format("Removed %d expired deposit job record(s)", removed));
+        }
+    }
+
+    private void update(Job job, Status status, String message) {
+        job.update(status, message);
+        try {
+            write(job);
+        } catch (IOException e) {
+            log.warn("Cannot record state " + status + " of deposit job " + job.getId(), e);
+        }
+    }
+
+    private void recover() {
+        final File[] files = journalDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.getName().endsWith(JOB_FILE_SUFFIX)) continue;
+            try {
+                final Job job = read(file);
+                if (job.getStatus() == Status.QUEUED || job.getStatus() == Status.RUNNING) {
+                    log.warn(String.format("Deposit job %s for %s was interrupted by a restart", job.getId(), job.getPid()));
+                    job.update(Status.FAILED, "Interrupted by service restart, please deposit again");
+                    write(job);
+                }
+            } catch (IOException e) {
+                log.warn("Cannot recover deposit job " + file.getAbsolutePath(), e);
+            }
+        }
+        pruneIfDue();
+    }
+
+    private File journalFile(String id) {
+        return new File(journalDir, id + JOB_FILE_SUFFIX);
+    }
+
+    private void write(Job job) throws IOException {
+        final Properties p = job.toProperties();
+        final File file = journalFile(job.getId());
+        final File tmp = new File(journalDir, job.getId() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            p.store(out, null);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Job read(File file) throws IOException {
+        final Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+        }
+        return Job.fromProperties(p);
+    }
+
+    /**
+     * State of a deposit job.
+     */
+    public static class Job {
+        private final String id;
+        private final String type;
+        private final String pid;
+        private final String username;
+        private final long created;
+        private volatile Status status;
+        private volatile String message;
+        private volatile long updated;
+
+        Job(String id, String type, String pid, String username) {
+            this(id, type, pid, username, System.currentTimeMillis(), Status.QUEUED, null, System.currentTimeMillis());
+        }
+
+        private Job(String id, String type, String pid, String username, long created,
+                    Status status, String message, long updated) {
+            this.id = id;
+            this.type = type;
+            this.pid = pid;
+            this.username = username;
+            this.created = created;
+            this.status = status;
+            this.message = message;
+            this.updated = updated;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getPid() {
+            return pid;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return Failure description if the job failed, null otherwise.
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        public long getUpdated() {
+            return updated;
+        }
+
+        synchronized void update(Status status, String message) {
+            this.status = status;
+            this.message = message;
+            this.updated = System.currentTimeMillis();
+        }
+
+        synchronized Properties toProperties() {
+            final Properties p = new Properties();
+            p.setProperty("id", id);
+            p.setProperty("type", type);
+            p.setProperty("pid", pid);
+            if (username != null) p.setProperty("username", username);
+            p.setProperty("created", String.valueOf(created));
+            p.setProperty("status", status.name());
+            if (message != null) p.setProperty("message", message);
+            p.setProperty("updated", String.valueOf(updated));
+            return p;
+        }
+
+        static Job fromProperties(Properties p) throws IOException {
+            try {
+                return new Job(
+                        p.getProperty("id"),
+                        p.getProperty("type"),
+                        p.getProperty("pid"),
+                        p.getProperty("username"),
+                        Long.parseLong(p.getProperty("created")),
+                        Status.valueOf(p.getProperty("status")),
+                        p.getProperty("message"),
+                        Long.parseLong(p.getProperty("updated")));
+            } catch (IllegalArgumentException | NullPointerException e) {
+                throw new IOException("Invalid deposit job record", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.purl.sword.base.SWORDEntry;
+import org.purl.sword.base.SWORDException;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of recently completed deposits, so that retried requests are answered without
+ * processing the deposit again.
+ * <p/>
+ * Up to `replay.cache.size` results (default 1000) are kept for `replay.cache.ttl` milliseconds
+ * (default 10 minutes). A deposit identical to one still in progress waits for it to complete and
+ * returns its result. Failed deposits are not remembered, so a waiting duplicate is processed itself.
+ * <p/>
+ * When a deposit to an object ends, earlier results for the same object are forgotten. Otherwise
+ * retrying deposit A after a later deposit B would return A's result and leave the object in the
+ * state of B.
+ */
+class DepositReplayCache {
+
+    private static final DepositReplayCache instance = new DepositReplayCache(
+            Integer.getInteger("replay.cache.size", 1000),
+            Long.getLong("replay.cache.ttl", TimeUnit.MINUTES.toMillis(10)));
+
+    private final int capacity;
+    private final long ttl;
+    private final LinkedHashMap<String, Result> completed = new LinkedHashMap<>();
+    private final Map<String, CountDownLatch> inProgress = new HashMap<>();
+    private final Map<String, String> keyByPid = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+
+    DepositReplayCache(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+    }
+
+    static DepositReplayCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return Hex encoded SHA-256 hash identifying a deposit by its kind, origin, target and content.
+     */
+    static String key(String type, String username, String collectionPid, String pid, String md5) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[]{type, username, collectionPid, pid, md5}) {
+                md.update(String.valueOf(part).getBytes("UTF-8"));
+                md.update((byte) 0);
+            }
+            return Hex.encode(md.digest());
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException("SHA-256 and UTF-8 have to be supported", e);
+        }
+    }
+
+    /**
+     * Return the result of an identical deposit, waiting for it if it is in progress. If there
+     * is none, the caller is registered as processing the deposit and has to call end() afterwards.
+     *
+     * @return The earlier result, or null if the caller has to process the deposit.
+     */
+    SWORDEntry begin(String key) throws SWORDException {
+        while (true) {
+            final CountDownLatch running;
+            synchronized (this) {
+                final Result result = completed.get(key);
+                if (result != null) {
+                    if (!result.isExpired()) {
+                        hits.incrementAndGet();
+                        return result.swordEntry;
+                    }
+                    remove(key);
+                }
+                running = inProgress.get(key);
+                if (running == null) {
+                    inProgress.put(key, new CountDownLatch(1));
+                    misses.incrementAndGet();
+                    return null;
+                }
+            }
+            waits.incrementAndGet();
+            try {
+                running.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SWORDException("Interrupted while waiting for identical deposit", e);
+            }
+        }
+    }
+
+    /**
+     * Finish processing a deposit registered by begin(). Results of earlier deposits to the same
+     * object are forgotten, whether this deposit succeeded or not.
+     *
+     * @param pid        The object the deposit was applied to, or null if not known
+     * @param swordEntry The result, or null if the deposit failed or is not to be replayed
+     */
+    void end(String key, String pid, SWORDEntry swordEntry) {
+        final CountDownLatch running;
+        synchronized (this) {
+            if (pid != null) {
+                final String earlier = keyByPid.remove(pid);
+                if (earlier != null) {
+                    completed.remove(earlier);
+                }
+            }
+            if (swordEntry != null) {
+                completed.put(key, new Result(swordEntry, pid, System.currentTimeMillis() + ttl));
+                if (pid != null) {
+                    keyByPid.put(pid, key);
+                }
+                evict();
+            }
+            running = inProgress.remove(key);
+        }
+        if (running != null) {
+            running.countDown();
+        }
+    }
+
+    synchronized int size() {
+        return completed.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of times a deposit waited for an identical one in progress.
+     */
+    long getWaits() {
+        return waits.get();
+    }
+
+    private void evict() {
+        final Iterator<Result> it = completed.values().iterator();
+        while (it.hasNext()) {
+            final Result result = it.next();
+            if (completed.size() > capacity || result.isExpired()) {
+                it.remove();
+                unindex(result);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void remove(String key) {
+        final Result result = completed.remove(key);
+        if (result != null) {
+            unindex(result);
+        }
+    }
+
+    /**
+     * There is at most one result per object, so the index entry of a removed result is its own.
+     */
+    private void unindex(Result result) {
+        if (result.pid != null) {
+            keyByPid.remove(result.pid);
+        }
+    }
+
+    private static class Result {
+        final SWORDEntry swordEntry;
+        final String pid;
+        final long expires;
+
+        Result(SWORDEntry swordEntry, String pid, long expires) {
+            this.swordEntry = swordEntry;
+            this.pid = pid;
+            this.expires = expires;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.purl.sword.base.SWORDException;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Checks a METS deposit without access to the repository.
+ * <p/>
+ * Every file must have a usable FLocat URL: `file:` URLs have to point to a readable file,
+ * other URLs have to be `http` or `https`. Given checksums need a supported CHECKSUMTYPE and
+ * have to be hexadecimal. The record status has to be a known object state. All problems are
+ * reported together.
+ */
+final class DryRunValidator {
+
+    private static final Pattern HEX = Pattern.compile("[0-9a-fA-F]+");
+
+    private DryRunValidator() {
+    }
+
+    /**
+     * @throws SWORDException listing every problem found
+     */
+    static void validate(AbstractMETSContainer metsContainer) throws SWORDException {
+        final List<String> problems = new LinkedList<>();
+        try {
+            metsContainer.getRecordstatus();
+        } catch (SWORDException e) {
+            problems.add(e.getMessage().trim());
+        }
+        for (METSFile file : metsContainer.getFileEntries()) {
+            if (file.isDeleteRequest()) continue;
+            checkLocation(file, problems);
+            checkChecksum(file, problems);
+        }
+
+        if (!problems.isEmpty()) {
+            StringBuilder sb = new StringBuilder("Invalid deposit, ")
+                    .append(problems.size()).append(" problem(s):");
+            for (String problem : problems) {
+                sb.append(' ').append(problem).append(';');
+            }
+            throw new SWORDException(sb.toString());
+        }
+    }
+
+    private static void checkLocation(METSFile file, List<String> problems) {
+        if (!file.hasFLocat()) return;
+        final URI uri;
+        try {
+            uri = file.getURI();
+        } catch (URISyntaxException e) {
+            problems.add(String.format("%s: invalid URL %s", file.getId(), file.getHref()));
+            return;
+        }
+        if (uri == null || uri.getScheme() == null) {
+            problems.add(String.format("%s: missing or relative URL", file.getId()));
+        } else if ("file".equals(uri.getScheme())) {
+            final File f;
+            try {
+                f = new File(uri);
+            } catch (IllegalArgumentException e) {
+                problems.add(String.format("%s: invalid file URL %s", file.getId(), uri));
+                return;
+            }
+            if (!f.isFile() || !f.canRead()) {
+                problems.add(String.format("%s: cannot read %s", file.getId(), f.getAbsolutePath()));
+            }
+        } else if (!"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme())) {
+            problems.add(String.format("%s: unsupported URL scheme %s", file.getId(), uri.getScheme()));
+        }
+    }
+
+    private static void checkChecksum(METSFile file, List<String> problems) {
+        final String checksum = file.getChecksum();
+        if (checksum == null || checksum.isEmpty()) return;
+        final String type = file.getChecksumType();
+        if (type == null || type.isEmpty()) {
+            problems.add(String.format("%s: CHECKSUM without CHECKSUMTYPE", file.getId()));
+            return;
+        }
+        try {
+            ChecksumType.algorithm(file);
+        } catch (NoSuchAlgorithmException e) {
+            problems.add(String.format("%s: unsupported checksum type %s", file.getId(), type));
+        }
+        if (!HEX.matcher(checksum).matches()) {
+            problems.add(String.format("%s: checksum %s is not hexadecimal", file.getId(), checksum));
+        }
+    }
+
+}
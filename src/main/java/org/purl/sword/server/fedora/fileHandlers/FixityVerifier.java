@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.purl.sword.base.SWORDException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies local `file:` attachments against the CHECKSUM and CHECKSUMTYPE given in METS.
+ * <p/>
+ * Files are hashed concurrently on a shared pool of `fixity.threads` threads (default is the
+ * number of available processors), reading through a large direct buffer. All mismatches are
+ * collected and reported together. Checksum types that cannot be computed are skipped, see
+ * {@link ChecksumType}.
+ */
+class FixityVerifier {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Integer.getInteger("fixity.threads", Runtime.getRuntime().availableProcessors()),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "fixity-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private FixityVerifier() {
+    }
+
+    /**
+     * Hash every local file that comes with a checksum.
+     *
+     * @throws SWORDException listing every file that is missing, unreadable or doesn't match its checksum
+     */
+    static void verify(List<METSFile> files) throws SWORDException {
+        final List<Future<String>> results = new LinkedList<>();
+        try {
+            for (METSFile file : files) {
+                if (needsVerification(file)) {
+                    results.add(executor.submit(new Verification(file)));
+                }
+            }
+        } catch (URISyntaxException e) {
+            throw new SWORDException("Invalid URL", e);
+        }
+
+        final List<String> failures = new LinkedList<>();
+        try {
+            for (Future<String> result : results) {
+                final String failure = result.get();
+                if (failure != null) failures.add(failure);
+            }
+        } catch (InterruptedException e) {
+            cancel(results);
+            Thread.currentThread().interrupt();
+            throw new SWORDException("Interrupted while verifying file checksums", e);
+        } catch (ExecutionException e) {
+            cancel(results);
+            throw new SWORDException("Cannot verify file checksums", e);
+        }
+
+        if (!failures.isEmpty()) {
+            StringBuilder sb = new StringBuilder("Fixity check failed for ")
+                    .append(failures.size()).append(" file(s):");
+            for (String failure : failures) {
+                sb.append(' ').append(failure).append(';');
+            }
+            throw new SWORDException(sb.toString());
+        }
+    }
+
+    static String digest(File file, String algorithm) throws IOException, NoSuchAlgorithmException {
+        final MessageDigest md = MessageDigest.getInstance(algorithm);
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        }
+        return Hex.encode(md.digest());
+    }
+
+    private static boolean needsVerification(METSFile file) throws URISyntaxException {
+        return !file.isDeleteRequest()
+                && file.hasFLocat()
+                && file.isLocalFile()
+                && file.getChecksum() != null && !file.getChecksum().isEmpty()
+                && file.getChecksumType() != null && !file.getChecksumType().isEmpty();
+    }
+
+    private static void cancel(List<Future<String>> results) {
+        for (Future<String> result : results) {
+            result.cancel(true);
+        }
+    }
+
+    private static class Verification implements Callable<String> {
+        private final METSFile file;
+
+        Verification(METSFile file) {
+            this.file = file;
+        }
+
+        /**
+         * @return Failure description or null if the file matches its checksum.
+         */
+        @Override
+        public String call() throws Exception {
+            final File f = new File(file.getURI());
+            if (!f.isFile()) {
+                return String.format("%s: file %s not found", file.getId(), f.getAbsolutePath());
+            }
+            final String actual;
+            try {
+                final String algorithm = ChecksumType.algorithm(file);
+                if (algorithm == null) return null;
+                actual = digest(f, algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                return String.format("%s: unsupported checksum type %s", file.getId(), file.getChecksumType());
+            } catch (IOException e) {
+                return String.format("%s: cannot read %s (%s)", file.getId(), f.getAbsolutePath(), e.getMessage());
+            }
+            if (!actual.equalsIgnoreCase(file.getChecksum())) {
+                return String.format("%s: %s checksum mismatch, expected %s but was %s",
+                        file.getId(), file.getChecksumType(), file.getChecksum(), actual);
+            }
+            return null;
+        }
+    }
+
+}
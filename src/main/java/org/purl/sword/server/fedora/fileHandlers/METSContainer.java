@@ -20,208 +20,101 @@ import org.jdom.Attribute;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
-import org.jdom.input.SAXBuilder;
 import org.purl.sword.base.SWORDException;
-import org.purl.sword.server.fedora.fedoraObjects.*;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
-import static org.purl.sword.server.fedora.fedoraObjects.State.DELETED;
-import static org.purl.sword.server.fedora.fedoraObjects.State.INACTIVE;
+public class METSContainer extends AbstractMETSContainer {
 
-public class METSContainer {
-
-    public static final Pattern PATTERN = Pattern.compile("^[a-z][a-z0-9\\+\\.\\-]*\\:.*", Pattern.CASE_INSENSITIVE);
-    public static final String DS_ID_SLUBINFO = "SLUB-INFO";
-    public static final String DS_ID_SLUBINFO_LABEL = "SLUB Administrative Metadata";
-    private static final String DS_ID_MODS = "MODS";
-    private static final String DS_ID_MODS_LABEL = "Object Bibliographic Metadata";
-    private static final String DS_ID_QUCOSAXML = "QUCOSA-XML";
-    private static final String DS_ID_QUCOSAXML_LABEL = "Pristine Qucosa XML Metadata";
-    private static final String DS_MODS_MIME_TYPE = "application/mods+xml";
     private static final String METS_DMDSEC_PREFIX = "/mets:mets/mets:dmdSec";
     private static final String METS_HDR_PREFIX = "/mets:mets/mets:metsHdr";
     private static final String MODS_PREFIX = METS_DMDSEC_PREFIX + "/mets:mdWrap[@MDTYPE='MODS']/mets:xmlData/mods:mods";
-    private final XPathQuery XPATH_FILES = new XPathQuery("/mets:mets/mets:fileSec/mets:fileGrp/mets:file");
-    private final XPathQuery XPATH_IDENTIFIERS = new XPathQuery(MODS_PREFIX + "/mods:identifier");
-    private final XPathQuery XPATH_MODS = new XPathQuery(MODS_PREFIX);
-    private final XPathQuery XPATH_QUCOSA = new XPathQuery(METS_DMDSEC_PREFIX + "/mets:mdWrap[@MDTYPE='OTHER' and @OTHERMDTYPE='QUCOSA-XML']/mets:xmlData/Opus");
-    private final XPathQuery XPATH_RECORDSTATUS = new XPathQuery(METS_HDR_PREFIX + "/@RECORDSTATUS");
-    private final XPathQuery XPATH_RELATEDITEMS = new XPathQuery(MODS_PREFIX + "/mods:relatedItem");
-    private final XPathQuery XPATH_SLUB = new XPathQuery("/mets:mets/mets:amdSec/mets:techMD" + "/mets:mdWrap[@MDTYPE='OTHER' and @OTHERMDTYPE='SLUBINFO']/mets:xmlData/slub:info");
-    private final XPathQuery XPATH_TITLE = new XPathQuery(MODS_PREFIX + "/mods:titleInfo/mods:title[1]");
-    private final String md5;
+    private static final String FILES = "/mets:mets/mets:fileSec/mets:fileGrp/mets:file";
+    private static final String IDENTIFIERS = MODS_PREFIX + "/mods:identifier";
+    private static final String QUCOSA = METS_DMDSEC_PREFIX + "/mets:mdWrap[@MDTYPE='OTHER' and @OTHERMDTYPE='QUCOSA-XML']/mets:xmlData/Opus";
+    private static final String RECORDSTATUS = METS_HDR_PREFIX + "/@RECORDSTATUS";
+    private static final String RELATEDITEMS = MODS_PREFIX + "/mods:relatedItem";
+    private static final String SLUB = "/mets:mets/mets:amdSec/mets:techMD/mets:mdWrap[@MDTYPE='OTHER' and @OTHERMDTYPE='SLUBINFO']/mets:xmlData/slub:info";
+    private static final String TITLE = MODS_PREFIX + "/mods:titleInfo/mods:title[1]";
+    private final XPathQuery XPATH_FILES = XPathQueryCache.get(FILES);
+    private final XPathQuery XPATH_IDENTIFIERS = XPathQueryCache.get(IDENTIFIERS);
+    private final XPathQuery XPATH_MODS = XPathQueryCache.get(MODS_PREFIX);
+    private final XPathQuery XPATH_QUCOSA = XPathQueryCache.get(QUCOSA);
+    private final XPathQuery XPATH_RECORDSTATUS = XPathQueryCache.get(RECORDSTATUS);
+    private final XPathQuery XPATH_RELATEDITEMS = XPathQueryCache.get(RELATEDITEMS);
+    private final XPathQuery XPATH_SLUB = XPathQueryCache.get(SLUB);
+    private final XPathQuery XPATH_TITLE = XPathQueryCache.get(TITLE);
+    private final Map<String, String> digests;
     private final Document metsDocument;
 
     public METSContainer(InputStream in) throws NoSuchAlgorithmException, JDOMException, IOException {
-        DigestInputStream din = new DigestInputStream(in, MessageDigest.getInstance("MD5"));
-        metsDocument = new SAXBuilder().build(din);
-        md5 = digestToString(din.getMessageDigest());
-    }
-
-    public String getMd5() {
-        return md5;
-    }
-
-    public Datastream getModsDatastream() {
-        try {
-            return getDatastream(XPATH_MODS, DS_ID_MODS, DS_ID_MODS_LABEL, DS_MODS_MIME_TYPE);
-        } catch (SWORDException e) {
-            return null;
-        }
+        MultiDigestInputStream din = MultiDigestInputStream.forDeposit(in);
+        metsDocument = XMLParserPool.build(din);
+        digests = din.getDigests();
     }
 
-    public Datastream getSlubInfoDatastream() {
-        try {
-            return getDatastream(XPATH_SLUB, DS_ID_SLUBINFO, DS_ID_SLUBINFO_LABEL);
-        } catch (SWORDException e) {
-            return null;
-        }
+    @Override
+    public Map<String, String> getDigests() {
+        return digests;
     }
 
-    public Datastream getQucosaXmlDatastream() {
+    @Override
+    public List<Element> getModsRelatedItems() {
         try {
-            final Datastream datastream = getDatastream(XPATH_QUCOSA, DS_ID_QUCOSAXML, DS_ID_QUCOSAXML_LABEL);
-            if (datastream != null) {
-                datastream.setState(INACTIVE);
-            }
-            return datastream;
-        } catch (SWORDException e) {
+            return XPATH_RELATEDITEMS.selectNodes(metsDocument);
+        } catch (JDOMException e) {
             return null;
         }
     }
 
-    public List<Datastream> getDatastreams() throws SWORDException {
-        LinkedList<Datastream> resultList = new LinkedList<>();
-        addIfNotNull(resultList, getSlubInfoDatastream());
-        addIfNotNull(resultList, getQucosaXmlDatastream());
-        addIfNotNull(resultList, getModsDatastream());
-        addIfNotNull(resultList, getAugmentedFileDatastreams());
-        return resultList;
-    }
-
-    public DublinCore getDublinCore() {
-        DublinCore dc = new DublinCore();
-        addIfNotNull(dc.getTitle(), getPrimaryTitle());
-        addIfNotNull(dc.getIdentifier(), getIdentifiers());
-        return dc;
-    }
-
-
-    public List<Datastream> getAugmentedFileDatastreams() throws SWORDException {
-        List<Datastream> datastreamList = new LinkedList<>();
+    @Override
+    protected Element getSectionElement(Section section) throws SWORDException {
         try {
-            final List<Element> fileElements = XPATH_FILES.selectNodes(metsDocument);
-            for (Element fileElement : fileElements) {
-                final String id = validateAndReturn("file ID", fileElement.getAttributeValue("ID"));
-
-                if (isADeleteRequest(fileElement)) {
-                    final VoidDatastream voidDatastream = new VoidDatastream(id);
-                    voidDatastream.setState(DELETED);
-                    datastreamList.add(voidDatastream);
-                } else {
-                    Datastream ds;
-                    if (fileElement.getChild("FLocat", Namespaces.METS) != null) {
-                        final Element fLocat = validateAndReturn("FLocat element", fileElement.getChild("FLocat", Namespaces.METS));
-                        final String href = validateAndReturn("file content URL", fLocat.getAttributeValue("href", Namespaces.XLINK));
-                        final URI uri = new URI(href);
-                        final boolean isFile = "file".equals(uri.getScheme());
-                        final String mimetype = validateAndReturn("mime type", fileElement.getAttributeValue("MIMETYPE"));
-                        ds = buildDatastream(id, fileElement, href, mimetype, isFile);
-                    } else {
-                        ds = new VoidDatastream(id);
-                        ds.setLabel(fileElement.getAttributeValue("LABEL", Namespaces.MEXT));
-                    }
-
-                    String digestType = emptyIfNull(fileElement.getAttributeValue("CHECKSUMTYPE"));
-                    String digest = emptyIfNull(fileElement.getAttributeValue("CHECKSUM"));
-                    if (!(digestType.isEmpty() || digest.isEmpty())) {
-                        ds.setDigestType(digestType);
-                        ds.setDigest(digest);
-                    }
-
-                    final boolean hasArchivalValue = "ARCHIVE".equals(fileElement.getAttributeValue("USE"));
-                    final boolean isDownloadable = "DOWNLOAD".equals(fileElement.getParentElement().getAttributeValue("USE"));
-
-                    datastreamList.add(new AugmentedDatastream(ds, hasArchivalValue, isDownloadable));
-                }
+            switch (section) {
+                case MODS:
+                    return XPATH_MODS.selectNode(metsDocument);
+                case SLUBINFO:
+                    return XPATH_SLUB.selectNode(metsDocument);
+                case QUCOSAXML:
+                    return XPATH_QUCOSA.selectNode(metsDocument);
+                default:
+                    return null;
             }
-
         } catch (JDOMException e) {
-            throw new SWORDException("Cannot obtain file datastreams", e);
-        } catch (URISyntaxException e) {
-            throw new SWORDException("Invalid URL", e);
+            throw new SWORDException("Cannot obtain section: " + section, e);
         }
-        return datastreamList;
     }
 
-    public List<File> getTemporayFiles() throws SWORDException {
-        final List<File> filesMarkedForRemoval = new LinkedList<>();
-        final List<Element> fileElements;
+    @Override
+    protected List<METSFile> getFiles() throws SWORDException {
+        final List<METSFile> files = new LinkedList<>();
         try {
-            fileElements = XPATH_FILES.selectNodes(metsDocument);
-            for (Element e : fileElements) {
-                if (!isADeleteRequest(e)) {
-                    if (e.getChild("FLocat", Namespaces.METS) != null) {
-                        final Element fLocat = validateAndReturn("FLocat element", e.getChild("FLocat", Namespaces.METS));
-                        final String href = validateAndReturn("file content URL", fLocat.getAttributeValue("href", Namespaces.XLINK));
-                        final URI uri = new URI(href);
-                        final boolean isFile = "file".equals(uri.getScheme());
-                        final boolean isTemporary = "TEMPORARY".equals(emptyIfNull(fLocat.getAttributeValue("USE")));
-                        if (isFile && isTemporary) {
-                            filesMarkedForRemoval.add(new File(uri));
-                        }
-                    }
-                }
+            for (Element fileElement : XPATH_FILES.selectNodes(metsDocument)) {
+                files.add(METSFile.of(fileElement));
             }
         } catch (JDOMException e) {
             throw new SWORDException("Cannot obtain file datastreams", e);
-        } catch (URISyntaxException ex) {
-            throw new SWORDException("Invalid URL", ex);
         }
-        return filesMarkedForRemoval;
+        return files;
     }
 
-    public List<Element> getModsRelatedItems() {
-        try {
-            return XPATH_RELATEDITEMS.selectNodes(metsDocument);
-        } catch (JDOMException e) {
-            return null;
-        }
-    }
-
-    public State getRecordstatus() throws SWORDException {
+    @Override
+    protected String getRecordstatusValue() throws SWORDException {
         try {
             final Attribute attr = XPATH_RECORDSTATUS.selectAttribute(metsDocument);
-            if (attr != null) {
-                final String rs = attr.getValue();
-                if (rs != null) {
-                    try {
-                        return State.valueOf(rs);
-                    } catch (IllegalArgumentException e) {
-                        throw new SWORDException(
-                                String.format("Unknown METS record state: %s (none of `ACTIVE`, `INACTIVE` or `DELETED`) ", rs));
-                    }
-                }
-            }
+            return (attr == null) ? null : attr.getValue();
         } catch (JDOMException e) {
             throw new SWORDException("Cannot obtain METS record status", e);
         }
-        return null;
     }
 
-    private String getPrimaryTitle() {
+    @Override
+    protected String getPrimaryTitle() {
         try {
             return XPATH_TITLE.selectValue(metsDocument);
         } catch (JDOMException e) {
@@ -229,96 +122,13 @@ public class METSContainer {
         }
     }
 
-    private List<String> getIdentifiers() {
+    @Override
+    protected List<Element> getIdentifierElements() {
         try {
-            final List<String> identifiers = new LinkedList<>();
-            final List<Element> elements = XPATH_IDENTIFIERS.selectNodes(metsDocument);
-            for (Element e : elements) {
-                final String type = e.getAttributeValue("type");
-                final String id = e.getTextTrim();
-                identifiers.add(hasProtocol(id) ? id : type + ":" + id);
-            }
-            return identifiers;
+            return XPATH_IDENTIFIERS.selectNodes(metsDocument);
         } catch (JDOMException e) {
             return null;
         }
     }
 
-    private boolean hasProtocol(String id) {
-        Matcher matcher = PATTERN.matcher(id);
-        return matcher.matches();
-    }
-
-    private Datastream getDatastream(XPathQuery query, String datastreamID, String datastreamLabel) throws SWORDException {
-        return getDatastream(query, datastreamID, datastreamLabel, null);
-    }
-
-    private Datastream getDatastream(XPathQuery query, String datastreamID, String datastreamLabel, String overrideMimetype)
-            throws SWORDException {
-        Datastream result = null;
-        try {
-            Element el = query.selectNode(metsDocument);
-            if (el != null) {
-                Document d = new Document((Element) el.clone());
-                result = new XMLInlineDatastream(datastreamID, d);
-                result.setLabel(datastreamLabel);
-                if (overrideMimetype != null) {
-                    result.setMimeType(overrideMimetype);
-                } else {
-                    result.setMimeType(el.getParentElement().getParentElement().getAttributeValue("MIMETYPE"));
-                }
-                String versioning = System.getProperty("datastream.versioning", "false");
-                result.setVersionable(Boolean.parseBoolean(versioning));
-            }
-        } catch (JDOMException e) {
-            throw new SWORDException("Cannot obtain datastream: " + datastreamID, e);
-        }
-        return result;
-    }
-
-    private String digestToString(MessageDigest digest) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : digest.digest()) {
-            sb.append(String.format("%02x", b));
-        }
-        return sb.toString();
-    }
-
-    private <E> E validateAndReturn(String description, E value) throws SWORDException {
-        if (value != null) {
-            return value;
-        } else {
-            throw new SWORDException("Cannot obtain " + description);
-        }
-    }
-
-    private boolean isADeleteRequest(Element e) {
-        return e.getAttributeValue("USE") != null && "DELETE".equals(e.getAttributeValue("USE"));
-    }
-
-    private String emptyIfNull(String s) {
-        return (s == null) ? "" : s;
-    }
-
-    private Datastream buildDatastream(String id, Element fileElement, String href, String mimetype, boolean isFile) {
-        Datastream datastream;
-        if (isFile) {
-            LocalDatastream lds = new LocalDatastream(id, mimetype, href);
-            lds.setCleanup(false); // no automatic cleanup
-            datastream = lds;
-        } else {
-            datastream = new ManagedDatastream(id, mimetype, href);
-        }
-        datastream.setLabel(fileElement.getAttributeValue("LABEL", Namespaces.MEXT));
-        return datastream;
-    }
-
-    private <E> void addIfNotNull(List<E> list, E e) {
-        if (e != null) list.add(e);
-    }
-
-    private <E> void addIfNotNull(List<E> list, List<E> es) {
-        if (es != null) list.addAll(es);
-    }
-
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.Element;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Attribute values of a single <mets:file> element and its first <mets:FLocat> child.
+ * <p/>
+ * Values are taken as they appear in the METS document. Validation happens when
+ * datastreams get built from it.
+ */
+class METSFile {
+
+    private final String id;
+    private final String use;
+    private final String groupUse;
+    private final String mimetype;
+    private final String label;
+    private final String checksum;
+    private final String checksumType;
+    private final boolean hasFLocat;
+    private final String href;
+    private final String fLocatUse;
+    private URI uri;
+
+    METSFile(String id, String use, String groupUse, String mimetype, String label,
+             String checksum, String checksumType, boolean hasFLocat, String href, String fLocatUse) {
+        this.id = id;
+        this.use = use;
+        this.groupUse = groupUse;
+        this.mimetype = mimetype;
+        this.label = label;
+        this.checksum = checksum;
+        this.checksumType = checksumType;
+        this.hasFLocat = hasFLocat;
+        this.href = href;
+        this.fLocatUse = fLocatUse;
+    }
+
+    static METSFile of(Element fileElement) {
+        final Element fLocat = fileElement.getChild("FLocat", Namespaces.METS);
+        return new METSFile(
+                fileElement.getAttributeValue("ID"),
+                fileElement.getAttributeValue("USE"),
+                fileElement.getParentElement().getAttributeValue("USE"),
+                fileElement.getAttributeValue("MIMETYPE"),
+                fileElement.getAttributeValue("LABEL", Namespaces.MEXT),
+                fileElement.getAttributeValue("CHECKSUM"),
+                fileElement.getAttributeValue("CHECKSUMTYPE"),
+                fLocat != null,
+                (fLocat == null) ? null : fLocat.getAttributeValue("href", Namespaces.XLINK),
+                (fLocat == null) ? null : fLocat.getAttributeValue("USE"));
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getMimetype() {
+        return mimetype;
+    }
+
+    String getLabel() {
+        return label;
+    }
+
+    String getChecksum() {
+        return checksum;
+    }
+
+    String getChecksumType() {
+        return checksumType;
+    }
+
+    boolean hasFLocat() {
+        return hasFLocat;
+    }
+
+    String getHref() {
+        return href;
+    }
+
+    String getFLocatUse() {
+        return fLocatUse;
+    }
+
+    /**
+     * @return Parsed FLocat URL, or null if there is no FLocat URL.
+     */
+    URI getURI() throws URISyntaxException {
+        if (uri == null && href != null) {
+            uri = new URI(href);
+        }
+        return uri;
+    }
+
+    boolean isLocalFile() throws URISyntaxException {
+        return getURI() != null && "file".equals(getURI().getScheme());
+    }
+
+    boolean isDeleteRequest() {
+        return "DELETE".equals(use);
+    }
+
+    boolean hasArchivalValue() {
+        return "ARCHIVE".equals(use);
+    }
+
+    boolean isDownloadable() {
+        return "DOWNLOAD".equals(groupUse);
+    }
+
+    boolean isTemporary() {
+        return "TEMPORARY".equals(fLocatUse);
+    }
+
+}
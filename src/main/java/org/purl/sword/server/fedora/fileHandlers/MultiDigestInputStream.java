@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Input stream computing digests of several algorithms while the stream is read.
+ * <p/>
+ * The set of algorithms used for deposits is configured by system property
+ * `deposit.digest.algorithms` as a comma separated list (e.g. `SHA-256,SHA-512`).
+ * MD5 is always computed since it is needed for checking the deposit checksum.
+ */
+public class MultiDigestInputStream extends FilterInputStream {
+
+    public static final String MD5 = "MD5";
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+    private Map<String, String> values;
+
+    public MultiDigestInputStream(InputStream in, Iterable<String> algorithms) throws NoSuchAlgorithmException {
+        super(in);
+        for (String algorithm : algorithms) {
+            if (!digests.containsKey(algorithm)) {
+                digests.put(algorithm, MessageDigest.getInstance(algorithm));
+            }
+        }
+    }
+
+    public static MultiDigestInputStream forDeposit(InputStream in) throws NoSuchAlgorithmException {
+        return new MultiDigestInputStream(in, depositAlgorithms());
+    }
+
+    public static Iterable<String> depositAlgorithms() {
+        final Map<String, Boolean> algorithms = new LinkedHashMap<>();
+        algorithms.put(MD5, true);
+        for (String algorithm : System.getProperty("deposit.digest.algorithms", "").split(",")) {
+            if (!algorithm.trim().isEmpty()) {
+                algorithms.put(algorithm.trim().toUpperCase(), true);
+            }
+        }
+        return algorithms.keySet();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = in.read();
+        if (b != -1) {
+            for (MessageDigest digest : digests.values()) {
+                digest.update((byte) b);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int n = in.read(b, off, len);
+        if (n > 0) {
+            for (MessageDigest digest : digests.values()) {
+                digest.update(b, off, n);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) return 0;
+        final byte[] buffer = new byte[(int) Math.min(8192, n)];
+        long skipped = 0;
+        while (skipped < n) {
+            final int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (r == -1) break;
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Reads the remaining bytes of the underlying stream, so the digests cover the complete input.
+     */
+    public void drain() throws IOException {
+        final byte[] buffer = new byte[8192];
+        while (read(buffer, 0, buffer.length) != -1) {
+            // read remaining bytes to complete the digests
+        }
+    }
+
+    /**
+     * Finishes digest computation. Further reads don't change the result.
+     *
+     * @return Hex encoded digest values by algorithm name, in configuration order.
+     */
+    public Map<String, String> getDigests() {
+        if (values == null) {
+            final Map<String, String> result = new LinkedHashMap<>();
+            for (Map.Entry<String, MessageDigest> entry : digests.entrySet()) {
+                result.put(entry.getKey(), Hex.encode(entry.getValue().digest()));
+            }
+            values = Collections.unmodifiableMap(result);
+        }
+        return values;
+    }
+
+}
@@ -25,6 +25,7 @@ public final class Namespaces {
     public static final Namespace XLINK = Namespace.getNamespace("xlink", "http://www.w3.org/1999/xlink");
     public static final Namespace MODS = Namespace.getNamespace("mods", "http://www.loc.gov/mods/v3");
     public static final Namespace MEXT = Namespace.getNamespace("mext", "http://slub-dresden.de/mets");
+    public static final Namespace RDF = Namespace.getNamespace("rdf", "http://www.w3.org/1999/02/22-rdf-syntax-ns#");
 
     private Namespaces() {
     }
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.log4j.Logger;
+import org.purl.sword.base.SWORDException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes modifications of the same repository object.
+ * <p/>
+ * Every PID gets its own lock while it is held or waited for, so modifications of different
+ * objects never wait for each other. Locks are reference counted and removed when no thread uses
+ * them any more. Waiting for a lock fails after `object.lock.timeout` milliseconds (default 5 minutes).
+ */
+class ObjectLocks {
+
+    private static final Logger log = Logger.getLogger(ObjectLocks.class);
+
+    private static final ObjectLocks instance = new ObjectLocks(
+            Long.getLong("object.lock.timeout", TimeUnit.MINUTES.toMillis(5)));
+
+    private final ConcurrentMap<String, LockEntry> locks = new ConcurrentHashMap<>();
+    private final long timeout;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong contended = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    ObjectLocks(long timeout) {
+        this.timeout = timeout;
+    }
+
+    static ObjectLocks getInstance() {
+        return instance;
+    }
+
+    /**
+     * Wait until no other thread modifies the object.
+     *
+     * @throws SWORDException if the lock cannot be obtained in time
+     */
+    void lock(String pid) throws SWORDException {
+        final LockEntry entry = reference(pid);
+        final long start = System.nanoTime();
+        final boolean locked;
+        try {
+            locked = entry.lock.tryLock() || waitFor(entry.lock);
+        } catch (InterruptedException e) {
+            release(pid, entry);
+            Thread.currentThread().interrupt();
+            throw new SWORDException("Interrupted while waiting for concurrent modification of " + pid, e);
+        }
+        final long waited = System.nanoTime() - start;
+        if (!locked) {
+            release(pid, entry);
+            throw new SWORDException(String.format(
+                    "Object %s is being modified by another request, gave up waiting after %d ms",
+                    pid, TimeUnit.NANOSECONDS.toMillis(waited)));
+        }
+        record(pid, waited);
+    }
+
+    void unlock(String pid) {
+        final LockEntry entry = locks.get(pid);
+        if (entry == null) {
+            throw new IllegalMonitorStateException("Object " + pid + " is not locked");
+        }
+        entry.lock.unlock();
+        release(pid, entry);
+    }
+
+    /**
+     * @return Number of objects currently locked or waited for.
+     */
+    int size() {
+        return locks.size();
+    }
+
+    long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    /**
+     * @return Number of acquisitions that had to wait for another modification.
+     */
+    long getContended() {
+        return contended.get();
+    }
+
+    long getWaitTime(TimeUnit unit) {
+        return unit.convert(waitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    long getMaxWaitTime(TimeUnit unit) {
+        return unit.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    private boolean waitFor(ReentrantLock lock) throws InterruptedException {
+        contended.incrementAndGet();
+        return lock.tryLock(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void record(String pid, long waited) {
+        acquisitions.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        long max;
+        while (waited > (max = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(max, waited)) break;
+        }
+        if (waited > TimeUnit.MILLISECONDS.toNanos(100)) {
+            log.debug(String.format("Waited %d ms for concurrent modification of %s",
+                    TimeUnit.NANOSECONDS.toMillis(waited), pid));
+        }
+    }
+
+    /**
+     * @return Lock of the object, registered as used by the calling thread until release().
+     */
+    private LockEntry reference(String pid) {
+        while (true) {
+            LockEntry entry = locks.get(pid);
+            if (entry == null) {
+                final LockEntry created = new LockEntry();
+                entry = locks.putIfAbsent(pid, created);
+                if (entry == null) entry = created;
+            }
+            synchronized (entry) {
+                if (!entry.removed) {
+                    entry.users++;
+                    return entry;
+                }
+            }
+            // entry was removed by its last user in the meantime
+        }
+    }
+
+    private void release(String pid, LockEntry entry) {
+        synchronized (entry) {
+            if (--entry.users == 0) {
+                entry.removed = true;
+                locks.remove(pid, entry);
+            }
+        }
+    }
+
+    private static class LockEntry {
+        private final ReentrantLock lock = new ReentrantLock(true);
+        private int users;
+        private boolean removed;
+    }
+
+}
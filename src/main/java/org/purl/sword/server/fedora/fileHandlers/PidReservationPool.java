@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.log4j.Logger;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraRepository;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PIDs minted ahead of time for ingests without a slug.
+ * <p/>
+ * PIDs are reserved per user: they are minted with the credentials of the user they are later
+ * handed out to. Reserved PIDs are handed out without locking. When fewer than `pid.pool.low.water`
+ * PIDs (default 5) are left for a user, a background thread reserves another block of
+ * `pid.pool.block.size` PIDs (default 20) for that user. If the pool runs dry, the PID is minted by
+ * the requesting thread.
+ */
+class PidReservationPool {
+
+    private static final Logger log = Logger.getLogger(PidReservationPool.class);
+
+    private static final PidReservationPool instance = new PidReservationPool(
+            Integer.getInteger("pid.pool.block.size", 20),
+            Integer.getInteger("pid.pool.low.water", 5));
+
+    private final int blockSize;
+    private final int lowWater;
+    private final ConcurrentMap<String, Reservations> reservations = new ConcurrentHashMap<>();
+    private final ExecutorService refiller = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "pid-reservation");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AtomicLong minted = new AtomicLong();
+    private final AtomicLong handedOut = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+
+    PidReservationPool(int blockSize, int lowWater) {
+        this.blockSize = blockSize;
+        this.lowWater = lowWater;
+    }
+
+    static PidReservationPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Hand out a PID reserved for the given user, or mint one with the given repository if none is left.
+     *
+     * @param username  User the PID is handed out to
+     * @param connector Connects a repository client with the user's credentials, used for refilling
+     *                  in the background
+     */
+    String nextPid(String username, FedoraRepository repository, RepositoryConnectionPool.Connector connector)
+            throws SWORDException {
+        final Reservations user = reservationsOf(username);
+        final String pid = user.reserved.poll();
+        if (user.reserved.size() < lowWater) {
+            refill(user, connector);
+        }
+        if (pid != null) {
+            handedOut.incrementAndGet();
+            return pid;
+        }
+        misses.incrementAndGet();
+        return repository.mintPid();
+    }
+
+    /**
+     * Remove all reserved PIDs. They will never be used and count as waste.
+     */
+    void clear() {
+        for (Reservations user : reservations.values()) {
+            String pid;
+            while ((pid = user.reserved.poll()) != null) {
+                wasted.incrementAndGet();
+                log.debug("Discarding reserved PID " + pid);
+            }
+        }
+    }
+
+    int getAvailable(String username) {
+        final Reservations user = reservations.get(String.valueOf(username));
+        return (user == null) ? 0 : user.reserved.size();
+    }
+
+    long getMinted() {
+        return minted.get();
+    }
+
+    long getHandedOut() {
+        return handedOut.get();
+    }
+
+    /**
+     * @return Number of requests that found the pool empty and minted their PID themselves.
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of reserved PIDs that were discarded unused.
+     */
+    long getWasted() {
+        return wasted.get();
+    }
+
+    private Reservations reservationsOf(String username) {
+        final String key = String.valueOf(username);
+        Reservations user = reservations.get(key);
+        if (user == null) {
+            final Reservations created = new Reservations();
+            user = reservations.putIfAbsent(key, created);
+            if (user == null) user = created;
+        }
+        return user;
+    }
+
+    private void refill(final Reservations user, final RepositoryConnectionPool.Connector connector) {
+        if (!user.refilling.compareAndSet(false, true)) return;
+        refiller.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final FedoraRepository repository = connector.connect();
+                    for (int i = 0; i < blockSize; i++) {
+                        user.reserved.add(repository.mintPid());
+                        minted.incrementAndGet();
+                    }
+                } catch (SWORDException | RuntimeException e) {
+                    log.warn("Cannot reserve PIDs", e);
+                } finally {
+                    user.refilling.set(false);
+                }
+            }
+        });
+    }
+
+    private static class Reservations {
+        private final Queue<String> reserved = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+    }
+
+}
@@ -16,35 +16,40 @@
 
 package org.purl.sword.server.fedora.fileHandlers;
 
-import org.apache.commons.collections.Closure;
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.log4j.Logger;
-import org.jdom.Content;
-import org.jdom.Document;
-import org.jdom.Element;
 import org.jdom.JDOMException;
 import org.jdom.Namespace;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+import org.purl.sword.atom.Link;
 import org.purl.sword.base.SWORDEntry;
 import org.purl.sword.base.SWORDException;
 import org.purl.sword.base.ServiceDocument;
 import org.purl.sword.server.fedora.baseExtensions.DepositCollection;
-import org.purl.sword.server.fedora.fedoraObjects.AugmentedDatastream;
 import org.purl.sword.server.fedora.fedoraObjects.Datastream;
 import org.purl.sword.server.fedora.fedoraObjects.DublinCore;
 import org.purl.sword.server.fedora.fedoraObjects.ExtendedRelationship;
 import org.purl.sword.server.fedora.fedoraObjects.FedoraObject;
 import org.purl.sword.server.fedora.fedoraObjects.FedoraRepository;
+import org.purl.sword.server.fedora.fedoraObjects.InlineDatastream;
 import org.purl.sword.server.fedora.fedoraObjects.Relationship;
 import org.purl.sword.server.fedora.fedoraObjects.VoidDatastream;
 import org.purl.sword.server.fedora.fedoraObjects.XMLInlineDatastream;
+import org.purl.sword.server.fedora.fileHandlers.StageTimer.Stage;
 
+import javax.xml.stream.XMLStreamException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.purl.sword.server.fedora.fedoraObjects.State.DELETED;
 
@@ -55,27 +60,185 @@ public class QucosaMETSFileHandler extends DefaultFileHandler {
     private static final String DEFAULT_COLLECTION_PID = "qucosa:all";
     public static final Namespace NS_OAI = Namespace.getNamespace("oai", "http://www.openarchives.org/OAI/2.0/");
 
-    private final XPathQuery XPATH_ATTACHMENTS;
+    private static final ExecutorService connector = Executors.newFixedThreadPool(
+            Integer.getInteger("repository.connect.threads", 8),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "repository-connect-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     public QucosaMETSFileHandler() throws JDOMException {
-        super("application/vnd.qucosa.mets+xml", "");
-        XPATH_ATTACHMENTS = new XPathQuery("slub:attachment");
+        this("application/vnd.qucosa.mets+xml", "");
+    }
+
+    protected QucosaMETSFileHandler(String contentType, String packaging) throws JDOMException {
+        super(contentType, packaging);
     }
 
     @Override
-    public SWORDEntry ingestDeposit(DepositCollection deposit, ServiceDocument serviceDocument) throws SWORDException {
-        METSContainer metsContainer = loadAndValidate(deposit);
-        final FedoraRepository repository = connectRepository(deposit);
-        final String pid = obtainPID(deposit, repository);
+    public SWORDEntry ingestDeposit(final DepositCollection deposit, ServiceDocument serviceDocument) throws SWORDException {
+        final StageTimer timer = new StageTimer();
+        long start = System.nanoTime();
+        final AbstractMETSContainer metsContainer = load(deposit);
+        timer.record(Stage.PARSE, start);
+        if (deposit.isNoOp()) {
+            return previewIngest(deposit, serviceDocument, metsContainer);
+        }
+        final String replayKey = replayKey("INGEST", deposit, deposit.getSlug(), metsContainer);
+        final SWORDEntry replayed = beginReplay(replayKey, metsContainer);
+        if (replayed != null) return replayed;
+
+        Future<FedoraRepository> connection = null;
+        FedoraRepository repository = null;
+        DepositJobQueue.Job job = null;
+        SWORDEntry swordEntry = null;
+        boolean completed = false;
+        try {
+            start = System.nanoTime();
+            DatastreamSet datastreams = validateMets(metsContainer);
+            timer.record(Stage.VALIDATE, start);
+
+            if (hasContentPreparation()) {
+                // connect while file content is verified and prefetched
+                connection = connectInBackground(deposit, timer);
+                start = System.nanoTime();
+                prepareContent(metsContainer);
+                if (!metsContainer.getPrefetchedFiles().isEmpty()) {
+                    // file datastreams now refer to the prefetched copies
+                    datastreams = validDatastreams(metsContainer);
+                }
+                timer.record(Stage.STAGE_CONTENT, start);
+                repository = awaitConnection(connection);
+            } else {
+                start = System.nanoTime();
+                repository = connectRepository(deposit);
+                timer.record(Stage.CONNECT, start);
+            }
+
+            start = System.nanoTime();
+            final String pid = obtainPID(deposit, repository);
+            timer.record(Stage.RESERVE_PID, start);
+
+            start = System.nanoTime();
+            final FedoraObject fedoraObject = buildFedoraObject(deposit, metsContainer, datastreams, pid);
+            timer.record(Stage.BUILD, start);
+
+            start = System.nanoTime();
+            if (isAsyncEnabled()) {
+                job = submitJob("INGEST", deposit, metsContainer, new RepositoryWork() {
+                    @Override
+                    public void run(FedoraRepository repository) throws SWORDException {
+                        ingest(repository, fedoraObject, metsContainer);
+                    }
+                });
+            } else {
+                ingest(repository, fedoraObject, metsContainer);
+            }
+            timer.record(Stage.INGEST, start);
+
+            swordEntry = getSWORDEntry(deposit, serviceDocument, fedoraObject);
+            addStatusLink(swordEntry, job);
+            completed = true;
+            return swordEntry;
+        } catch (SWORDException | RuntimeException e) {
+            invalidateOnConnectionFailure(deposit, e);
+            throw e;
+        } finally {
+            start = System.nanoTime();
+            if (repository == null && connection != null) {
+                abandonConnection(deposit, connection);
+            } else {
+                releaseRepository(deposit, repository, completed);
+            }
+            if (job == null) {
+                discardStagingFiles(metsContainer);
+            }
+            endReplay(replayKey, deposit.getDepositID(), completed ? swordEntry : null, job);
+            timer.record(Stage.CLEANUP, start);
+            log.debug("Ingest " + deposit.getDepositID() + ": " + timer);
+        }
+    }
+
+    /**
+     * Validate an ingest deposit and describe the object that would be created, without
+     * connecting to the repository.
+     */
+    private SWORDEntry previewIngest(DepositCollection deposit, ServiceDocument serviceDocument,
+                                     AbstractMETSContainer metsContainer) throws SWORDException {
+        try {
+            DryRunValidator.validate(metsContainer);
+            final FedoraObject fedoraObject = buildFedoraObject(deposit, metsContainer,
+                    validDatastreams(metsContainer), obtainPID(deposit, null));
+            final SWORDEntry swordEntry = getSWORDEntry(deposit, serviceDocument, fedoraObject);
+            addPreview(swordEntry, "No-op: object not ingested.", fedoraObject.getRelsext(),
+                    DatastreamSet.of(fedoraObject.getDatastreams()).get(AbstractMETSContainer.DS_ID_SLUBINFO));
+            return swordEntry;
+        } finally {
+            discardStagingFiles(metsContainer);
+        }
+    }
+
+    /**
+     * Validate an update deposit and describe the datastreams it provides, without connecting
+     * to the repository. Since the stored SLUB-INFO is not read, the preview only shows the
+     * attachment rights given in the deposit.
+     */
+    private SWORDEntry previewUpdate(DepositCollection deposit, ServiceDocument serviceDocument,
+                                     AbstractMETSContainer metsContainer) throws SWORDException {
+        try {
+            DryRunValidator.validate(metsContainer);
+            final DatastreamSet datastreams = validDatastreams(metsContainer);
+            final Relationship rels = datastreams.contains("MODS")
+                    ? buildRelationships(deposit, metsContainer) : null;
+            final XMLInlineDatastream slubInfo =
+                    (XMLInlineDatastream) datastreams.get(AbstractMETSContainer.DS_ID_SLUBINFO);
+            augmentedFileAttributesInSlubInfoDatastream(datastreams, slubInfo);
+
+            final FedoraObject fedoraObject = new FedoraObject(deposit.getDepositID());
+            fedoraObject.setDc(metsContainer.getDublinCore());
+            final SWORDEntry swordEntry = getSWORDEntry(deposit, serviceDocument, fedoraObject);
+            addPreview(swordEntry, "No-op: object not updated.", rels, slubInfo);
+            return swordEntry;
+        } finally {
+            discardStagingFiles(metsContainer);
+        }
+    }
+
+    /**
+     * Add RELS-EXT and SLUB-INFO as they would be written to the verbose description of the receipt.
+     */
+    private void addPreview(SWORDEntry swordEntry, String treatment, Datastream... datastreams) {
+        final XMLOutputter outputter = new XMLOutputter(Format.getPrettyFormat());
+        final StringBuilder sb = new StringBuilder();
+        for (Datastream ds : datastreams) {
+            if (ds instanceof InlineDatastream) {
+                sb.append(ds.getId()).append(":\n")
+                        .append(outputter.outputString(((InlineDatastream) ds).toXML()))
+                        .append('\n');
+            }
+        }
+        swordEntry.setTreatment(treatment);
+        swordEntry.setVerboseDescription(sb.toString());
+    }
+
+    /**
+     * Build and validate the Fedora object for a deposit. The deposit ID is set to the given PID.
+     *
+     * @param datastreams Datastreams of the deposit as returned by validateMets()
+     */
+    FedoraObject buildFedoraObject(DepositCollection deposit, AbstractMETSContainer metsContainer,
+                                   DatastreamSet datastreams, String pid) throws SWORDException {
         deposit.setDepositID(pid);
         final FedoraObject fedoraObject = new FedoraObject(pid);
 
-        final List<Datastream> datastreams = metsContainer.getDatastreams();
-        ensureValidDSIds(datastreams);
         augmentedFileAttributesInSlubInfoDatastream(datastreams,
-                (XMLInlineDatastream) findDatastream("SLUB-INFO", datastreams));
-
-        removeAugmentationWrapperFrom(datastreams);
+                (XMLInlineDatastream) datastreams.get(AbstractMETSContainer.DS_ID_SLUBINFO));
 
         fedoraObject.setIdentifiers(getIdentifiers(deposit));
         fedoraObject.setRelsext(buildRelationships(deposit, metsContainer));
@@ -84,22 +247,23 @@ public class QucosaMETSFileHandler extends DefaultFileHandler {
         fedoraObject.setState(metsContainer.getRecordstatus());
 
         validateObject(fedoraObject);
+        return fedoraObject;
+    }
 
-        if (!deposit.isNoOp()) { // Don't ingest if no-op is set
-            repository.ingest(fedoraObject);
-            delete(metsContainer.getTemporayFiles());
-        }
-
-        return getSWORDEntry(deposit, serviceDocument, fedoraObject);
+    void ingest(FedoraRepository repository, FedoraObject fedoraObject, AbstractMETSContainer metsContainer)
+            throws SWORDException {
+        repository.ingest(fedoraObject);
+        removeTemporaryFiles(metsContainer.getTemporayFiles());
     }
 
-    private void removeAugmentationWrapperFrom(List<Datastream> datastreams) {
-        for (int i = 0; i < datastreams.size(); i++) {
-            Datastream ds = datastreams.get(i);
-            if (ds instanceof AugmentedDatastream) {
-                datastreams.set(i, ((AugmentedDatastream) ds).getWrappedDatastream());
-            }
-        }
+    /**
+     * @return Datastreams of the deposit with valid DSIDs, indexed by DSID
+     */
+    private DatastreamSet validDatastreams(AbstractMETSContainer metsContainer) throws SWORDException {
+        final DatastreamSet datastreams = new DatastreamSet(metsContainer.getDatastreams());
+        ensureValidDSIds(datastreams);
+        datastreams.reindex();
+        return datastreams;
     }
 
     /**
@@ -135,105 +299,205 @@ public class QucosaMETSFileHandler extends DefaultFileHandler {
      * @throws SWORDException if something goes wrong
      */
     @Override
-    public SWORDEntry updateDeposit(DepositCollection deposit, ServiceDocument serviceDocument) throws SWORDException {
-        METSContainer metsContainer = loadAndValidate(deposit);
-        final FedoraRepository repository = connectRepository(deposit);
-        final String pid = deposit.getDepositID();
-        final DublinCore dcDatastream = metsContainer.getDublinCore();
-
-        if (!deposit.isNoOp()) { // Don't ingest if no-op is set
-            update(repository, pid, dcDatastream);
-            final List<Datastream> datastreams = metsContainer.getDatastreams();
-            // ... returns augmented file datastreams to access internal properties without
-            // changing the original Fedora Client API
-
-            Relationship rels;
-            // Only build relationships when MODS is part of the deposit
-            if (findDatastream("MODS", datastreams) != null) {
-                rels = buildRelationships(deposit, metsContainer);
+    public SWORDEntry updateDeposit(final DepositCollection deposit, ServiceDocument serviceDocument) throws SWORDException {
+        final AbstractMETSContainer metsContainer = load(deposit);
+        if (deposit.isNoOp()) {
+            return previewUpdate(deposit, serviceDocument, metsContainer);
+        }
+        final String replayKey = replayKey("UPDATE", deposit, deposit.getDepositID(), metsContainer);
+        final SWORDEntry replayed = beginReplay(replayKey, metsContainer);
+        if (replayed != null) return replayed;
+
+        FedoraRepository repository = null;
+        DepositJobQueue.Job job = null;
+        SWORDEntry swordEntry = null;
+        boolean completed = false;
+        try {
+            prepareContent(metsContainer);
+            final String pid = deposit.getDepositID();
+            final DublinCore dcDatastream = metsContainer.getDublinCore();
+
+            if (isAsyncEnabled()) {
+                job = submitJob("UPDATE", deposit, metsContainer, new RepositoryWork() {
+                    @Override
+                    public void run(FedoraRepository repository) throws SWORDException {
+                        update(repository, deposit, metsContainer);
+                    }
+                });
             } else {
-                rels = null;
+                repository = connectRepository(deposit);
+                update(repository, deposit, metsContainer);
             }
 
-            Datastream depositSlubInfo = prepareSlubInfoUpdateDatastream(repository, pid, datastreams);
-
-            // Remove augmentation from file datastreams so library code can handle them (instanceOf issues)
-            removeAugmentationWrapperFrom(datastreams);
+            final FedoraObject fedoraObject = new FedoraObject(pid);
+            fedoraObject.setDc(dcDatastream);
+            swordEntry = getSWORDEntry(deposit, serviceDocument, fedoraObject);
+            addStatusLink(swordEntry, job);
+            completed = true;
+            return swordEntry;
+        } catch (SWORDException | RuntimeException e) {
+            invalidateOnConnectionFailure(deposit, e);
+            throw e;
+        } finally {
+            releaseRepository(deposit, repository, completed);
+            if (job == null) {
+                discardStagingFiles(metsContainer);
+            }
+            endReplay(replayKey, deposit.getDepositID(), completed ? swordEntry : null, job);
+        }
+    }
 
-            updateIfPresent(repository, pid, metsContainer.getModsDatastream());
-            updateAttachmentDatastreams(repository, pid, datastreams);
-            updateOrAdd(repository, pid, rels);
-            updateOrAdd(repository, pid, depositSlubInfo);
-            updateOrAdd(repository, pid, metsContainer.getQucosaXmlDatastream());
+    /**
+     * Apply the deposit to the repository object. Updates of the same object are serialized,
+     * since SLUB-INFO is read, merged and written back.
+     */
+    private void update(FedoraRepository repository, DepositCollection deposit, AbstractMETSContainer metsContainer)
+            throws SWORDException {
+        final ObjectLocks locks = ObjectLocks.getInstance();
+        locks.lock(deposit.getDepositID());
+        try {
+            applyUpdate(repository, deposit, metsContainer);
+        } finally {
+            locks.unlock(deposit.getDepositID());
+        }
+    }
 
-            delete(metsContainer.getTemporayFiles());
+    private void applyUpdate(FedoraRepository repository, DepositCollection deposit, AbstractMETSContainer metsContainer)
+            throws SWORDException {
+        final DatastreamLookupCache cache = new DatastreamLookupCache(repository, deposit.getDepositID(),
+                isSkipUnchangedEnabled());
+        update(cache, metsContainer.getDublinCore());
+        final DatastreamSet datastreams = new DatastreamSet(metsContainer.getDatastreams());
+
+        Relationship rels;
+        // Only build relationships when MODS is part of the deposit
+        if (datastreams.contains("MODS")) {
+            rels = buildRelationships(deposit, metsContainer);
+        } else {
+            rels = null;
         }
 
-        final FedoraObject fedoraObject = new FedoraObject(pid);
-        fedoraObject.setDc(dcDatastream);
-        return getSWORDEntry(deposit, serviceDocument, fedoraObject);
+        Datastream depositSlubInfo = prepareSlubInfoUpdateDatastream(cache, datastreams);
+
+        updateIfPresent(cache, metsContainer.getModsDatastream());
+        updateAttachmentDatastreams(cache, datastreams);
+        updateRelationships(cache, rels);
+        updateOrAdd(cache, depositSlubInfo);
+        updateOrAdd(cache, metsContainer.getQucosaXmlDatastream());
+
+        removeTemporaryFiles(metsContainer.getTemporayFiles());
     }
 
-    private XMLInlineDatastream prepareSlubInfoUpdateDatastream(FedoraRepository repository, String pid, List<Datastream> datastreams) throws SWORDException {
-        final XMLInlineDatastream repositorySlubInfo = (XMLInlineDatastream) repository.getDatastream(pid, METSContainer.DS_ID_SLUBINFO);
-        XMLInlineDatastream depositSlubInfo = (XMLInlineDatastream) findDatastream(METSContainer.DS_ID_SLUBINFO, datastreams);
-        if (repositorySlubInfo != null) {
-            if (depositSlubInfo == null) {
-                depositSlubInfo = repositorySlubInfo;
-            } else {
-                try {
-                    mergeAttachmentElements(depositSlubInfo, repositorySlubInfo);
-                } catch (JDOMException e) {
-                    throw new SWORDException("Cannot merge deposit SLUB-INFO with repository SLUB-INFO", e);
-                }
-            }
+    private XMLInlineDatastream prepareSlubInfoUpdateDatastream(DatastreamLookupCache cache, DatastreamSet datastreams) throws SWORDException {
+        final XMLInlineDatastream repositorySlubInfo = (XMLInlineDatastream) cache.getDatastream(AbstractMETSContainer.DS_ID_SLUBINFO);
+        XMLInlineDatastream depositSlubInfo = (XMLInlineDatastream) datastreams.get(AbstractMETSContainer.DS_ID_SLUBINFO);
+        if (depositSlubInfo == null) {
+            if (repositorySlubInfo == null) return null;
+            depositSlubInfo = repositorySlubInfo;
+        }
+        final AttachmentRights rights = AttachmentRights.read(depositSlubInfo);
+        if (repositorySlubInfo != null && repositorySlubInfo != depositSlubInfo) {
+            rights.addMissing(AttachmentRights.read(repositorySlubInfo));
         }
-        augmentedFileAttributesInSlubInfoDatastream(datastreams, depositSlubInfo);
+        applyFileAttributes(datastreams, rights);
+        rights.writeTo(depositSlubInfo);
         return depositSlubInfo;
     }
 
-    private void mergeAttachmentElements(XMLInlineDatastream into, XMLInlineDatastream from) throws JDOMException {
-        Element intoRights = into.toXML().getRootElement().getChild("rights", Namespaces.SLUB);
-
-        if (intoRights == null) {
-            intoRights = new Element("rights", Namespaces.SLUB);
-            into.toXML().getRootElement().addContent(intoRights);
+    /**
+     * Parse the deposit and verify its checksum.
+     */
+    private AbstractMETSContainer load(DepositCollection deposit) throws SWORDException {
+        validateDeposit(deposit);
+        final AbstractMETSContainer metsContainer;
+        if (Boolean.parseBoolean(System.getProperty("deposit.staging", "false"))) {
+            metsContainer = stageAndLoad(deposit);
+        } else {
+            metsContainer = loadMets(deposit.getFile());
+            assertChecksum(deposit, metsContainer.getMd5());
         }
+        return metsContainer;
+    }
 
-        final Element fromRights = from.toXML().getRootElement().getChild("rights", Namespaces.SLUB);
-
-        final Map<String, Element> fromAttachmentElementMap = getAttachmentElementMap(
-                (fromRights == null) ? null : XPATH_ATTACHMENTS.selectNodes(fromRights));
+    /**
+     * Checks that don't need the repository, so invalid deposits are rejected before
+     * connecting and reserving a PID.
+     *
+     * @return Datastreams of the deposit with valid DSIDs
+     */
+    DatastreamSet validateMets(AbstractMETSContainer metsContainer) throws SWORDException {
+        final DatastreamSet datastreams = validDatastreams(metsContainer);
+        if (!datastreams.contains("MODS")) {
+            throw new SWORDException("Missing MODS datastream in METS source");
+        }
+        metsContainer.getRecordstatus();
+        return datastreams;
+    }
 
-        final Map<String, Element> intoAttachmentElementMap = getAttachmentElementMap(
-                (fromRights == null) ? null : XPATH_ATTACHMENTS.selectNodes(intoRights));
+    /**
+     * Verify and prefetch file content referenced by the METS document, as configured.
+     * Staging files are discarded if this fails.
+     */
+    void prepareContent(AbstractMETSContainer metsContainer) throws SWORDException {
+        try {
+            if (Boolean.parseBoolean(System.getProperty("fixity.verification", "false"))) {
+                FixityVerifier.verify(metsContainer.getFileEntries());
+            }
+            if (Boolean.parseBoolean(System.getProperty("remote.prefetch", "false"))) {
+                metsContainer.setPrefetchedFiles(RemoteContentPrefetcher.prefetch(
+                        metsContainer.getFileEntries(), stagingDirectory()));
+            }
+        } catch (SWORDException e) {
+            discardStagingFiles(metsContainer);
+            throw e;
+        }
+    }
 
-        fromAttachmentElementMap.keySet().removeAll(intoAttachmentElementMap.keySet());
+    private boolean hasContentPreparation() {
+        return Boolean.parseBoolean(System.getProperty("fixity.verification", "false"))
+                || Boolean.parseBoolean(System.getProperty("remote.prefetch", "false"));
+    }
 
-        for (Element element : fromAttachmentElementMap.values()) {
-            intoRights.addContent((Content) element.clone());
-        }
+    File stagingDirectory() {
+        return new File(System.getProperty("deposit.staging.dir", System.getProperty("java.io.tmpdir")));
     }
 
-    private Map<String, Element> getAttachmentElementMap(final List<Element> fromList) {
-        return new HashMap<String, Element>() {{
-            CollectionUtils.forAllDo(
-                    fromList,
-                    new Closure() {
-                        @Override
-                        public void execute(Object input) {
-                            Element item = (Element) input;
-                            put(item.getAttributeValue("ref"), item);
-                        }
-                    });
-        }};
+    /**
+     * Spool the deposit body to a staging file and verify its MD5 checksum before
+     * parsing METS from the staged bytes. The staging file is removed by
+     * discardStagingFiles() after the deposit has been processed.
+     */
+    private AbstractMETSContainer stageAndLoad(DepositCollection deposit) throws SWORDException {
+        final StagedDeposit stagedDeposit;
+        try {
+            stagedDeposit = StagedDeposit.stage(deposit.getFile());
+        } catch (NoSuchAlgorithmException e) {
+            throw swordException("No MD5 digest algorithm found", e);
+        } catch (IOException e) {
+            throw swordException("Couldn't stage deposit", e);
+        }
+        try {
+            assertChecksum(deposit, stagedDeposit.getMd5());
+            final AbstractMETSContainer metsContainer;
+            try (InputStream in = stagedDeposit.openStream()) {
+                metsContainer = loadMets(in);
+            }
+            metsContainer.setStagedDeposit(stagedDeposit);
+            return metsContainer;
+        } catch (IOException e) {
+            stagedDeposit.close();
+            throw swordException("Couldn't read staged deposit", e);
+        } catch (SWORDException | RuntimeException e) {
+            stagedDeposit.close();
+            throw e;
+        }
     }
 
-    private METSContainer loadAndValidate(DepositCollection deposit) throws SWORDException {
-        validateDeposit(deposit);
-        METSContainer metsContainer = loadMets(deposit);
-        assertChecksum(deposit, metsContainer);
-        return metsContainer;
+    void discardStagingFiles(AbstractMETSContainer metsContainer) {
+        if (metsContainer.getStagedDeposit() != null) {
+            metsContainer.getStagedDeposit().close();
+        }
+        RemoteContentPrefetcher.delete(metsContainer.getPrefetchedFiles().values());
     }
 
 
@@ -250,7 +514,7 @@ public class QucosaMETSFileHandler extends DefaultFileHandler {
         if (!modsExists) throw new SWORDException("Missing MODS datastream in METS source");
     }
 
-    private Relationship buildRelationships(DepositCollection deposit, METSContainer metsContainer) {
+    private Relationship buildRelationships(DepositCollection deposit, AbstractMETSContainer metsContainer) {
         ExtendedRelationship rels = new ExtendedRelationship();
 
         rels.addModel("info:fedora/" + QUCOSA_CMODEL);
@@ -274,75 +538,236 @@ public class QucosaMETSFileHandler extends DefaultFileHandler {
         target.addLiteral(NS_OAI, "itemID", oaiItemId);
     }
 
-    private void addDocumentRelations(METSContainer source, Relationship target) {
-        /*
-            Types otherVersion, otherFormat, isReferencedBy, references cannot be mapped into Fedora RI
-            using info:fedora/fedora-system:def/relations-external
-         */
-        final Map<String, String> typeMap = new HashMap<String, String>() {{
-            put("preceding", "isDerivationOf");
-            put("original", "isDerivationOf");
-            put("succeeding", "hasDerivation");
-            put("host", "isPartOf");
-            put("constituent", "hasConstituent");
-            put("series", "isConstituentOf");
-            put("reviewOf", "isAnnotationOf");
-        }};
-
-        List<Element> relatedItems = source.getModsRelatedItems();
-        for (Element ri : relatedItems) {
-            final String riAttributeValue = ri.getAttributeValue("type");
-            final String relationshipType = (typeMap.containsKey(riAttributeValue)) ? typeMap.get(riAttributeValue) : riAttributeValue;
-            for (Object e : ri.getChildren("identifier", Namespaces.MODS)) {
-                target.add(relationshipType, ((Element) e).getTextTrim());
-            }
+    private void addDocumentRelations(AbstractMETSContainer source, Relationship target) {
+        RelationshipMapping.addRelatedItems(source.getModsRelatedItems(), target);
+    }
+
+    FedoraRepository connectRepository(final DepositCollection deposit) throws SWORDException {
+        if (isRepositoryPoolEnabled()) {
+            return RepositoryConnectionPool.getInstance().borrow(deposit.getUsername(), deposit.getPassword(),
+                    new RepositoryConnectionPool.Connector() {
+                        @Override
+                        public FedoraRepository connect() throws SWORDException {
+                            return newRepositoryConnection(deposit);
+                        }
+                    });
         }
+        return newRepositoryConnection(deposit);
     }
 
-    private FedoraRepository connectRepository(DepositCollection deposit) throws SWORDException {
+    private FedoraRepository newRepositoryConnection(DepositCollection deposit) throws SWORDException {
         final FedoraRepository repo = new FedoraRepository(this._props, deposit.getUsername(), deposit.getPassword());
         return repo.connect();
     }
 
+    private Future<FedoraRepository> connectInBackground(final DepositCollection deposit, final StageTimer timer) {
+        return connector.submit(new Callable<FedoraRepository>() {
+            @Override
+            public FedoraRepository call() throws Exception {
+                final long start = System.nanoTime();
+                try {
+                    return connectRepository(deposit);
+                } finally {
+                    timer.record(Stage.CONNECT, start);
+                }
+            }
+        });
+    }
+
+    private FedoraRepository awaitConnection(Future<FedoraRepository> connection) throws SWORDException {
+        try {
+            return connection.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SWORDException("Interrupted while connecting to repository", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SWORDException) throw (SWORDException) e.getCause();
+            throw new SWORDException("Cannot connect to repository", e);
+        }
+    }
+
+    /**
+     * Release a connection opened in the background that is not going to be used, because an
+     * earlier stage failed. The connection itself is fine and can be reused.
+     */
+    private void abandonConnection(DepositCollection deposit, Future<FedoraRepository> connection) {
+        if (connection.cancel(false)) return;
+        try {
+            releaseRepository(deposit, awaitConnection(connection), true);
+        } catch (SWORDException e) {
+            log.debug("Background connection failed", e);
+        }
+    }
+
+    /**
+     * Return a pooled connection for reuse, unless the request failed. A failed request may be
+     * caused by rejected credentials or a broken connection, so it is not reused.
+     */
+    void releaseRepository(DepositCollection deposit, FedoraRepository repository, boolean healthy) {
+        if (repository != null && isRepositoryPoolEnabled()) {
+            RepositoryConnectionPool.getInstance().release(
+                    deposit.getUsername(), deposit.getPassword(), repository, healthy);
+        }
+    }
+
+    /**
+     * Discard the idle pooled connections of the depositing user if the request failed talking to
+     * the repository. Other failures leave them alone.
+     */
+    void invalidateOnConnectionFailure(DepositCollection deposit, Throwable failure) {
+        if (isRepositoryPoolEnabled() && RepositoryConnectionPool.isConnectionFailure(failure)) {
+            RepositoryConnectionPool.getInstance().invalidate(deposit.getUsername(), deposit.getPassword());
+        }
+    }
+
+    private boolean isRepositoryPoolEnabled() {
+        return Boolean.parseBoolean(System.getProperty("repository.pool.enabled", "false"));
+    }
+
+    /**
+     * @return Key identifying retries of the same deposit, or null if deposits are not to be replayed.
+     */
+    private String replayKey(String type, DepositCollection deposit, String pid, AbstractMETSContainer metsContainer) {
+        if (deposit.isNoOp() || !Boolean.parseBoolean(System.getProperty("replay.cache.enabled", "false"))) {
+            return null;
+        }
+        return DepositReplayCache.key(type, deposit.getUsername(), deposit.getCollectionPid(), pid,
+                metsContainer.getMd5());
+    }
+
+    /**
+     * Look up the result of an earlier identical deposit, waiting if it is still in progress.
+     *
+     * @return The earlier result, or null if the deposit has to be processed.
+     */
+    private SWORDEntry beginReplay(String replayKey, AbstractMETSContainer metsContainer) throws SWORDException {
+        if (replayKey == null) return null;
+        final SWORDEntry replayed = DepositReplayCache.getInstance().begin(replayKey);
+        if (replayed != null) {
+            log.info("Returning result of identical earlier deposit");
+            discardStagingFiles(metsContainer);
+        }
+        return replayed;
+    }
+
+    /**
+     * Receipts of queued jobs are not remembered, since they don't tell whether the job succeeds.
+     */
+    private void endReplay(String replayKey, String pid, SWORDEntry swordEntry, DepositJobQueue.Job job) {
+        if (replayKey != null) {
+            DepositReplayCache.getInstance().end(replayKey, pid, (job == null) ? swordEntry : null);
+        }
+    }
+
+    private boolean isSkipUnchangedEnabled() {
+        return Boolean.parseBoolean(System.getProperty("datastream.skip.unchanged", "false"));
+    }
+
+    private boolean isAsyncEnabled() {
+        return Boolean.parseBoolean(System.getProperty("deposit.async", "false"));
+    }
+
+    /**
+     * Queue the repository operations of a deposit for background execution. The job connects
+     * its own repository client and removes the staging files of the deposit when done.
+     */
+    private DepositJobQueue.Job submitJob(String type, final DepositCollection deposit,
+                                          final AbstractMETSContainer metsContainer,
+                                          final RepositoryWork work) throws SWORDException {
+        return DepositJobQueue.getInstance().submit(type, deposit.getDepositID(), deposit.getUsername(),
+                new DepositJobQueue.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        FedoraRepository repository = null;
+                        boolean completed = false;
+                        try {
+                            repository = connectRepository(deposit);
+                            work.run(repository);
+                            completed = true;
+                        } catch (SWORDException | RuntimeException e) {
+                            invalidateOnConnectionFailure(deposit, e);
+                            throw e;
+                        } finally {
+                            releaseRepository(deposit, repository, completed);
+                            discardStagingFiles(metsContainer);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Link the deposit receipt to the status of a queued job, using the `deposit.async.status.url`
+     * format with the job ID in place of `%s`.
+     */
+    private void addStatusLink(SWORDEntry swordEntry, DepositJobQueue.Job job) {
+        if (job == null) return;
+        final Link link = new Link();
+        link.setRel("status");
+        link.setHref(String.format(System.getProperty("deposit.async.status.url", "urn:uuid:%s"), job.getId()));
+        swordEntry.addLink(link);
+    }
+
+    private interface RepositoryWork {
+        void run(FedoraRepository repository) throws SWORDException;
+    }
+
     private SWORDException swordException(String message, Exception e) {
         return new SWORDException(message, e);
     }
 
-    private void validateDeposit(DepositCollection pDeposit) {
+    void validateDeposit(DepositCollection pDeposit) {
         if (pDeposit.getOnBehalfOf() == null || pDeposit.getOnBehalfOf().isEmpty()) {
             log.warn("X-On-Behalf-Of header is not set. HTTP request principal will be used as repository object owner ID.");
         }
     }
 
-    private void assertChecksum(DepositCollection deposit, METSContainer metsContainer) throws SWORDException {
+    void assertChecksum(DepositCollection deposit, String metsMd5) throws SWORDException {
         if (hasMd5(deposit)) {
             final String depositMd5 = deposit.getMd5();
-            final String metsMd5 = metsContainer.getMd5();
             if (!metsMd5.equals(depositMd5)) {
                 throw new SWORDException("Bad MD5 for submitted content: " + metsMd5 + ". Expected: " + depositMd5);
             }
         }
     }
 
-    private METSContainer loadMets(DepositCollection deposit) throws SWORDException {
-        METSContainer metsContainer;
+    AbstractMETSContainer loadMets(InputStream in) throws SWORDException {
+        AbstractMETSContainer metsContainer;
         try {
-            metsContainer = new METSContainer(deposit.getFile());
+            if ("streaming".equals(System.getProperty("mets.container", "dom"))) {
+                metsContainer = new StreamingMETSContainer(in);
+            } else {
+                metsContainer = new METSContainer(in);
+            }
         } catch (NoSuchAlgorithmException e) {
             throw swordException("No MD5 digest algorithm found", e);
-        } catch (JDOMException | IOException e) {
+        } catch (JDOMException | XMLStreamException | IOException e) {
             throw swordException("Couldn't build METS from deposit", e);
         }
         return metsContainer;
     }
 
     private String obtainPID(DepositCollection deposit, FedoraRepository repository) throws SWORDException {
-        String pid = "noop:nopid";
         if (isSet(deposit.getSlug())) {
-            pid = deposit.getSlug();
-        } else if (!deposit.isNoOp()) {
+            return deposit.getSlug();
+        }
+        return mintPID(deposit, repository);
+    }
+
+    String mintPID(final DepositCollection deposit, FedoraRepository repository) throws SWORDException {
+        String pid = "noop:nopid";
+        if (!deposit.isNoOp()) {
             // Don't mint PID if no op is set
-            pid = repository.mintPid();
+            if (Boolean.parseBoolean(System.getProperty("pid.pool.enabled", "false"))) {
+                pid = PidReservationPool.getInstance().nextPid(deposit.getUsername(), repository,
+                        new RepositoryConnectionPool.Connector() {
+                            @Override
+                            public FedoraRepository connect() throws SWORDException {
+                                return newRepositoryConnection(deposit);
+                            }
+                        });
+            } else {
+                pid = repository.mintPid();
+            }
         }
         return pid;
     }
@@ -351,6 +776,14 @@ public class QucosaMETSFileHandler extends DefaultFileHandler {
         return !emptyIfNull(s).isEmpty();
     }
 
+    private void removeTemporaryFiles(List<File> files) {
+        if (Boolean.parseBoolean(System.getProperty("reaper.enabled", "false"))) {
+            TemporaryFileReaper.getInstance().enqueue(files);
+        } else {
+            delete(files);
+        }
+    }
+
     private void delete(List<File> files) {
         for (File f : files) {
             if (!f.delete()) {
@@ -367,117 +800,82 @@ public class QucosaMETSFileHandler extends DefaultFileHandler {
         return (deposit.getMd5() != null) && (!deposit.getMd5().isEmpty());
     }
 
-    private void updateAttachmentDatastreams(FedoraRepository repository, String pid, List<Datastream> datastreams) throws SWORDException {
-        final List<Datastream> fileDatastreams = findDatastreams("ATT-", datastreams);
-        for (Datastream attDatastream : fileDatastreams) {
-            final boolean isVoidDatastream = attDatastream instanceof VoidDatastream;
-            final boolean toBeDeleted = isVoidDatastream && DELETED.equals(attDatastream.getState());
-
-            if (toBeDeleted) {
-                if (repository.hasDatastream(pid, attDatastream.getId())) {
-                    repository.setDatastreamState(pid, attDatastream.getId(), DELETED, null);
-                    return;
-                }
-            } else {
-                // assuming content or property modification
-                if (repository.hasDatastream(pid, attDatastream.getId())) {
-                    repository.modifyDatastream(pid, attDatastream, null);
-                } else {
-                    repository.addDatastream(pid, attDatastream, null);
-                }
-            }
-        }
+    private void updateAttachmentDatastreams(DatastreamLookupCache cache, DatastreamSet datastreams) throws SWORDException {
+        AttachmentWriter.writeAll(cache, datastreams.getAttachments(),
+                Integer.getInteger("attachment.write.parallelism", 1));
     }
 
-    private void updateIfPresent(FedoraRepository repository, String pid, Datastream datastream) throws SWORDException {
+    private void updateIfPresent(DatastreamLookupCache cache, Datastream datastream) throws SWORDException {
         if (datastream != null) {
-            update(repository, pid, datastream);
+            update(cache, datastream);
         }
     }
 
-    private void update(FedoraRepository repository, String pid, Datastream datastream) throws SWORDException {
-        if (repository.hasDatastream(pid, datastream.getId())) {
-            repository.modifyDatastream(pid, datastream, null);
+    private void update(DatastreamLookupCache cache, Datastream datastream) throws SWORDException {
+        if (cache.hasDatastream(datastream.getId())) {
+            modifyIfChanged(cache, datastream);
         }
     }
 
-    private void updateOrAdd(FedoraRepository repository, String pid, Datastream datastream) throws SWORDException {
+    private void updateOrAdd(DatastreamLookupCache cache, Datastream datastream) throws SWORDException {
         if (datastream != null) {
-            if (repository.hasDatastream(pid, datastream.getId())) {
-                repository.modifyDatastream(pid, datastream, null);
+            if (cache.hasDatastream(datastream.getId())) {
+                modifyIfChanged(cache, datastream);
             } else {
-                repository.addDatastream(pid, datastream, null);
+                cache.addDatastream(datastream);
             }
         }
     }
 
-    private void augmentedFileAttributesInSlubInfoDatastream(List<Datastream> datastreams, XMLInlineDatastream slubInfo) throws SWORDException {
-        final List<Datastream> attachmentDatastreams = findDatastreams("ATT-", datastreams);
-        if (attachmentDatastreams.isEmpty()) return;
-
-        Document info;
-        if (slubInfo == null) {
-            info = new Document();
-            info.addContent(new Element("info", Namespaces.SLUB));
-            slubInfo = new XMLInlineDatastream(METSContainer.DS_ID_SLUBINFO, info);
-            slubInfo.setLabel(METSContainer.DS_ID_SLUBINFO_LABEL);
-            slubInfo.setVersionable(Boolean.parseBoolean(System.getProperty("datastream.versioning", "false")));
-        } else {
-            info = slubInfo.toXML();
-        }
-
-        Element rights = info.getRootElement().getChild("rights", Namespaces.SLUB);
-        if (rights == null) {
-            rights = new Element("rights", Namespaces.SLUB);
-            info.getRootElement().addContent(rights);
-        }
-
-        final List<Element> attachmentElements;
-        try {
-            attachmentElements = XPATH_ATTACHMENTS.selectNodes(rights);
-            Map<String, Element> attachmentElementMap = getAttachmentElementMap(attachmentElements);
-            for (Datastream attachmentDatastream : attachmentDatastreams) {
-                if (attachmentDatastream instanceof AugmentedDatastream) {
-                    AugmentedDatastream augmentedDatastream = (AugmentedDatastream) attachmentDatastream;
-                    final String attachmentDatastreamId = augmentedDatastream.getId();
-                    Element attachment = attachmentElementMap.get(attachmentDatastreamId);
-                    if (attachment == null) {
-                        attachment = new Element("attachment", Namespaces.SLUB);
-                        rights.addContent(attachment);
-                    }
-                    attachment.setAttribute("ref", attachmentDatastreamId);
-                    attachment.setAttribute("hasArchivalValue", yesno(augmentedDatastream.isHasArchivalValue()));
-                    attachment.setAttribute("isDownloadable", yesno(augmentedDatastream.isDownloadable()));
-                } else if ((attachmentDatastream instanceof VoidDatastream) && DELETED.equals(attachmentDatastream.getState())) {
-                    rights.removeContent(
-                            new XPathQuery("slub:attachment[@ref='" + attachmentDatastream.getId() + "']")
-                                    .selectNode(rights));
+    /**
+     * Write RELS-EXT unless, in diff mode, the stored RELS-EXT already has the same relationships.
+     * Every RELS-EXT write makes Fedora reindex all triples of the object in the Resource Index.
+     */
+    private void updateRelationships(DatastreamLookupCache cache, Relationship rels) throws SWORDException {
+        if (rels != null && Boolean.parseBoolean(System.getProperty("relsext.update.diff", "false"))) {
+            final Datastream stored = cache.getDatastream(rels.getId());
+            if (stored instanceof InlineDatastream) {
+                final RelsExtDiff diff = RelsExtDiff.between(((InlineDatastream) stored).toXML(), rels.toXML());
+                if (diff.isEmpty()) {
+                    log.debug("Skip writing unchanged RELS-EXT of " + cache.getPid());
+                    return;
                 }
+                log.debug(String.format("RELS-EXT of %s: %d relationship(s) added, %d removed",
+                        cache.getPid(), diff.getAdded().size(), diff.getRemoved().size()));
             }
-        } catch (JDOMException e) {
-            throw new SWORDException("Error augmenting SLUB-INFO with attachment options", e);
         }
+        updateOrAdd(cache, rels);
     }
 
-    private String yesno(boolean b) {
-        return b ? "yes" : "no";
+    private void modifyIfChanged(DatastreamLookupCache cache, Datastream datastream) throws SWORDException {
+        if (isSkipUnchangedEnabled() && cache.isUnchanged(datastream)) {
+            log.debug("Skip writing unchanged datastream " + datastream.getId() + " of " + cache.getPid());
+            return;
+        }
+        cache.modifyDatastream(datastream);
     }
 
-    private List<Datastream> findDatastreams(String dsidPrefix, List<Datastream> datastreams) {
-        final LinkedList<Datastream> result = new LinkedList<>();
-        for (Datastream ds : datastreams) {
-            if (ds.getId().startsWith(dsidPrefix)) {
-                result.add(ds);
-            }
-        }
-        return result;
+    /**
+     * Write archival value and download options of the deposited files to the attachment rights
+     * in SLUB-INFO. Without a SLUB-INFO datastream there is nothing to augment.
+     */
+    private void augmentedFileAttributesInSlubInfoDatastream(DatastreamSet datastreams, XMLInlineDatastream slubInfo) {
+        if (slubInfo == null || datastreams.getAttachments().isEmpty()) return;
+        final AttachmentRights rights = AttachmentRights.read(slubInfo);
+        applyFileAttributes(datastreams, rights);
+        rights.writeTo(slubInfo);
     }
 
-    private Datastream findDatastream(String dsid, List<Datastream> datastreams) {
-        for (Datastream ds : datastreams) {
-            if (ds.getId().equals(dsid)) return ds;
+    private void applyFileAttributes(DatastreamSet datastreams, AttachmentRights rights) {
+        for (Datastream attachmentDatastream : datastreams.getAttachments()) {
+            final DatastreamSet.FileAttributes fileAttributes = datastreams.getFileAttributes(attachmentDatastream);
+            if (fileAttributes != null) {
+                rights.set(attachmentDatastream.getId(),
+                        fileAttributes.hasArchivalValue(), fileAttributes.isDownloadable());
+            } else if ((attachmentDatastream instanceof VoidDatastream) && DELETED.equals(attachmentDatastream.getState())) {
+                rights.remove(attachmentDatastream.getId());
+            }
         }
-        return null;
     }
 
 }
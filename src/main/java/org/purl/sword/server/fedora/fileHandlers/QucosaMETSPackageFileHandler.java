@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.log4j.Logger;
+import org.jdom.JDOMException;
+import org.purl.sword.base.SWORDEntry;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.base.ServiceDocument;
+import org.purl.sword.server.fedora.baseExtensions.DepositCollection;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraObject;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraRepository;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Ingests a ZIP package of METS documents in one request.
+ * <p/>
+ * Every `.xml` entry of the package is handled like a single METS deposit to the same collection,
+ * with a freshly minted PID. While one object is ingested, the next entries are parsed by a
+ * background thread; at most `package.pipeline.depth` parsed entries (default 2) wait for ingest.
+ * All objects of a package are ingested using the same repository connection.
+ * <p/>
+ * A failing entry does not stop the package. The deposit receipt describes the first ingested
+ * object, its treatment lists the result of every entry. If no entry could be ingested the
+ * deposit fails.
+ */
+public class QucosaMETSPackageFileHandler extends QucosaMETSFileHandler {
+
+    private static final Logger log = Logger.getLogger(QucosaMETSPackageFileHandler.class);
+
+    private static final ExecutorService parser = Executors.newFixedThreadPool(
+            Integer.getInteger("package.parser.threads", 4),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "package-parser-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public QucosaMETSPackageFileHandler() throws JDOMException {
+        super("application/vnd.qucosa.mets+zip", "");
+    }
+
+    @Override
+    public SWORDEntry ingestDeposit(DepositCollection deposit, ServiceDocument serviceDocument) throws SWORDException {
+        validateDeposit(deposit);
+        final StagedDeposit stagedPackage = stage(deposit);
+        final BlockingQueue<Item> parsed = new ArrayBlockingQueue<>(Integer.getInteger("package.pipeline.depth", 2));
+        final Future<?> parsing = parser.submit(new PackageParser(stagedPackage, parsed, !deposit.isNoOp()));
+
+        final List<Item> results = new ArrayList<>();
+        FedoraObject first = null;
+        FedoraRepository repository = null;
+        boolean completed = false;
+        try {
+            if (!deposit.isNoOp()) { // No-op packages are validated without repository
+                repository = connectRepository(deposit);
+            }
+            Item item;
+            while ((item = parsed.take()) != Item.END) {
+                results.add(item);
+                if (item.metsContainer == null) continue;
+                try {
+                    if (deposit.isNoOp()) {
+                        DryRunValidator.validate(item.metsContainer);
+                    }
+                    // validate before a PID is minted for the entry
+                    final DatastreamSet datastreams = validateMets(item.metsContainer);
+                    final FedoraObject fedoraObject = buildFedoraObject(deposit, item.metsContainer,
+                            datastreams, mintPID(deposit, repository));
+                    if (!deposit.isNoOp()) { // Don't ingest if no-op is set
+                        ingest(repository, fedoraObject, item.metsContainer);
+                    }
+                    item.pid = fedoraObject.getPid();
+                    if (first == null) first = fedoraObject;
+                } catch (SWORDException | RuntimeException e) {
+                    log.warn("Cannot ingest package entry " + item.name, e);
+                    item.failure = e.getMessage();
+                } finally {
+                    discardStagingFiles(item.metsContainer);
+                }
+            }
+            parsing.get();
+
+            if (first == null) {
+                throw new SWORDException("No object ingested from package: " + manifest(results));
+            }
+            deposit.setDepositID(first.getPid());
+            final SWORDEntry swordEntry = getSWORDEntry(deposit, serviceDocument, first);
+            swordEntry.setTreatment(manifest(results));
+            completed = true;
+            return swordEntry;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SWORDException("Interrupted while ingesting package", e);
+        } catch (ExecutionException e) {
+            throw new SWORDException("Cannot read package", e);
+        } catch (SWORDException | RuntimeException e) {
+            invalidateOnConnectionFailure(deposit, e);
+            throw e;
+        } finally {
+            releaseRepository(deposit, repository, completed);
+            if (!completed) {
+                parsing.cancel(true);
+                for (Item item : parsed) {
+                    if (item.metsContainer != null) discardStagingFiles(item.metsContainer);
+                }
+            }
+            stagedPackage.close();
+        }
+    }
+
+    @Override
+    public SWORDEntry updateDeposit(DepositCollection deposit, ServiceDocument serviceDocument) throws SWORDException {
+        throw new SWORDException("Packages can only be used to ingest new objects");
+    }
+
+    /**
+     * Stage the package, so its checksum is verified before any object gets ingested.
+     */
+    private StagedDeposit stage(DepositCollection deposit) throws SWORDException {
+        final StagedDeposit stagedPackage;
+        try {
+            stagedPackage = StagedDeposit.stage(deposit.getFile());
+        } catch (NoSuchAlgorithmException e) {
+            throw new SWORDException("No MD5 digest algorithm found", e);
+        } catch (IOException e) {
+            throw new SWORDException("Couldn't stage package", e);
+        }
+        try {
+            assertChecksum(deposit, stagedPackage.getMd5());
+        } catch (SWORDException e) {
+            stagedPackage.close();
+            throw e;
+        }
+        return stagedPackage;
+    }
+
+    /**
+     * @return One line per package entry, giving the PID of the ingested object or the reason of failure.
+     */
+    private String manifest(List<Item> results) {
+        final StringBuilder sb = new StringBuilder();
+        for (Item item : results) {
+            sb.append(item.name).append(": ");
+            if (item.pid != null) {
+                sb.append(item.pid);
+            } else {
+                sb.append("FAILED ").append(item.failure);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static class Item {
+        static final Item END = new Item(null, null, null);
+
+        final String name;
+        final AbstractMETSContainer metsContainer;
+        String pid;
+        String failure;
+
+        Item(String name, AbstractMETSContainer metsContainer, String failure) {
+            this.name = name;
+            this.metsContainer = metsContainer;
+            this.failure = failure;
+        }
+    }
+
+    private class PackageParser implements Runnable {
+        private final StagedDeposit stagedPackage;
+        private final BlockingQueue<Item> parsed;
+        private final boolean prepareContent;
+
+        PackageParser(StagedDeposit stagedPackage, BlockingQueue<Item> parsed, boolean prepareContent) {
+            this.stagedPackage = stagedPackage;
+            this.parsed = parsed;
+            this.prepareContent = prepareContent;
+        }
+
+        @Override
+        public void run() {
+            try {
+                try (ZipInputStream zip = new ZipInputStream(
+                        new BufferedInputStream(new FileInputStream(stagedPackage.getFile())))) {
+                    ZipEntry entry;
+                    while ((entry = zip.getNextEntry()) != null) {
+                        if (entry.isDirectory() || !entry.getName().endsWith(".xml")) {
+                            log.debug("Skipping package entry " + entry.getName());
+                            continue;
+                        }
+                        put(parse(entry.getName(), zip));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Cannot read package " + stagedPackage.getFile().getAbsolutePath(), e);
+                    parsed.put(new Item("package", null, "Cannot read package: " + e.getMessage()));
+                }
+                parsed.put(Item.END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Wait for the ingest to catch up. Parsed entries that cannot be handed over are discarded.
+         */
+        private void put(Item item) throws InterruptedException {
+            try {
+                parsed.put(item);
+            } catch (InterruptedException e) {
+                if (item.metsContainer != null) discardStagingFiles(item.metsContainer);
+                throw e;
+            }
+        }
+
+        private Item parse(String name, ZipInputStream zip) {
+            try {
+                final AbstractMETSContainer metsContainer = loadMets(new CloseShieldInputStream(zip));
+                if (prepareContent) { // No-op packages are validated without fetching content
+                    prepareContent(metsContainer);
+                }
+                return new Item(name, metsContainer, null);
+            } catch (SWORDException | RuntimeException e) {
+                log.warn("Cannot parse package entry " + name, e);
+                return new Item(name, null, e.getMessage());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.log4j.Logger;
+import org.jdom.Element;
+import org.purl.sword.server.fedora.fedoraObjects.Relationship;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Maps MODS relatedItem elements to RELS-EXT relationships.
+ * <p/>
+ * The mapping of relatedItem types is read once from `relateditem-mapping.properties` on the
+ * class path. Entries can be added or overridden with a properties file given in system property
+ * `relateditem.mapping`. Types without mapping are used as relationship name as they are.
+ */
+final class RelationshipMapping {
+
+    private static final Logger log = Logger.getLogger(RelationshipMapping.class);
+    private static final Map<String, String> mapping = load();
+
+    private RelationshipMapping() {
+    }
+
+    static String relationshipType(String relatedItemType) {
+        final String relationshipType = mapping.get(relatedItemType);
+        return (relationshipType == null) ? relatedItemType : relationshipType;
+    }
+
+    /**
+     * Add a relationship for every identifier of the given relatedItem elements.
+     */
+    static void addRelatedItems(List<Element> relatedItems, Relationship target) {
+        if (relatedItems == null) return;
+        for (Element relatedItem : relatedItems) {
+            final String relationshipType = relationshipType(relatedItem.getAttributeValue("type"));
+            for (Object identifier : relatedItem.getChildren("identifier", Namespaces.MODS)) {
+                target.add(relationshipType, ((Element) identifier).getTextTrim());
+            }
+        }
+    }
+
+    private static Map<String, String> load() {
+        final Properties properties = new Properties();
+        try (InputStream in = RelationshipMapping.class.getResourceAsStream("/relateditem-mapping.properties")) {
+            if (in == null) {
+                log.warn("No relateditem-mapping.properties on class path");
+            } else {
+                properties.load(in);
+            }
+        } catch (IOException e) {
+            log.error("Cannot read relateditem-mapping.properties", e);
+        }
+
+        final String file = System.getProperty("relateditem.mapping");
+        if (file != null && !file.isEmpty()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            } catch (IOException e) {
+                log.error("Cannot read relatedItem mapping from " + file, e);
+            }
+        }
+
+        final Map<String, String> result = new HashMap<>();
+        for (String type : properties.stringPropertyNames()) {
+            result.put(type, properties.getProperty(type).trim());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+}
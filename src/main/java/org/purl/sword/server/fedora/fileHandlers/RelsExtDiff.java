@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.Document;
+import org.jdom.Element;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Difference between two versions of a RELS-EXT datastream.
+ * <p/>
+ * Both versions are reduced to their sets of RDF triples, so the order of relationships and
+ * XML formatting don't count as changes. Triples are written in N-Triples notation.
+ */
+final class RelsExtDiff {
+
+    private final Set<String> added;
+    private final Set<String> removed;
+
+    private RelsExtDiff(Set<String> added, Set<String> removed) {
+        this.added = added;
+        this.removed = removed;
+    }
+
+    static RelsExtDiff between(Document current, Document updated) {
+        final Set<String> removed = triples(current);
+        final Set<String> updatedTriples = triples(updated);
+        final Set<String> added = new LinkedHashSet<>(updatedTriples);
+        added.removeAll(removed);
+        removed.removeAll(updatedTriples);
+        return new RelsExtDiff(added, removed);
+    }
+
+    /**
+     * @return Triples of all `rdf:Description` elements of a RELS-EXT document, in document order
+     */
+    static Set<String> triples(Document relsExt) {
+        final Set<String> triples = new LinkedHashSet<>();
+        if (relsExt == null || !relsExt.hasRootElement()) return triples;
+        for (Object d : relsExt.getRootElement().getChildren("Description", Namespaces.RDF)) {
+            final Element description = (Element) d;
+            final String subject = '<' + description.getAttributeValue("about", Namespaces.RDF) + '>';
+            for (Object p : description.getChildren()) {
+                final Element property = (Element) p;
+                triples.add(subject + " <" + property.getNamespaceURI() + property.getName() + "> " + object(property));
+            }
+        }
+        return triples;
+    }
+
+    boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    Set<String> getAdded() {
+        return Collections.unmodifiableSet(added);
+    }
+
+    Set<String> getRemoved() {
+        return Collections.unmodifiableSet(removed);
+    }
+
+    private static String object(Element property) {
+        final String resource = property.getAttributeValue("resource", Namespaces.RDF);
+        if (resource != null) {
+            return '<' + resource + '>';
+        }
+        final String datatype = property.getAttributeValue("datatype", Namespaces.RDF);
+        final String literal = '"' + property.getText().replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+        return (datatype == null) ? literal : literal + "^^<" + datatype + '>';
+    }
+
+}
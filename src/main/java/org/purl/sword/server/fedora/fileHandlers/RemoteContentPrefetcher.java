@@ -0,0 +1,290 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.log4j.Logger;
+import org.purl.sword.base.SWORDException;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads http(s) FLocat targets of a deposit into a local staging directory.
+ * <p/>
+ * Downloads run concurrently on a shared pool of `remote.prefetch.threads` threads (default 4).
+ * At most `remote.prefetch.per.host` downloads (default 2) run against the same host at a time;
+ * further downloads from that host wait in a per-host queue without occupying a pool thread.
+ * Connect and read timeouts are given in milliseconds by `remote.prefetch.connect.timeout` and
+ * `remote.prefetch.read.timeout` (default 10 and 60 seconds). Content digests are computed while
+ * downloading and checked against CHECKSUM and CHECKSUMTYPE if given.
+ */
+class RemoteContentPrefetcher {
+
+    private static final Logger log = Logger.getLogger(RemoteContentPrefetcher.class);
+
+    private static final int PER_HOST_LIMIT = Integer.getInteger("remote.prefetch.per.host", 2);
+    private static final int CONNECT_TIMEOUT = Integer.getInteger("remote.prefetch.connect.timeout", 10 * 1000);
+    private static final int READ_TIMEOUT = Integer.getInteger("remote.prefetch.read.timeout", 60 * 1000);
+
+    // guarded by itself
+    private static final Map<String, HostQueue> hostQueues = new HashMap<>();
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Integer.getInteger("remote.prefetch.threads", 4),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "prefetch-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private RemoteContentPrefetcher() {
+    }
+
+    /**
+     * Download the content of every remote file entry into the given directory.
+     *
+     * @return Local files by METS file ID
+     * @throws SWORDException listing every download that failed. Files already downloaded are removed.
+     */
+    static Map<String, File> prefetch(List<METSFile> files, File dir) throws SWORDException {
+        final Map<String, Future<File>> downloads = new LinkedHashMap<>();
+        final List<Download> scheduled = new LinkedList<>();
+        try {
+            for (METSFile file : files) {
+                if (isRemote(file) && !downloads.containsKey(file.getId())) {
+                    final Download download = new Download(file, dir);
+                    scheduled.add(download);
+                    downloads.put(file.getId(), schedule(download));
+                }
+            }
+        } catch (URISyntaxException e) {
+            discard(downloads.values(), scheduled);
+            throw new SWORDException("Invalid URL", e);
+        } catch (IOException e) {
+            discard(downloads.values(), scheduled);
+            throw new SWORDException("Cannot create staging file in " + dir.getAbsolutePath(), e);
+        }
+
+        final Map<String, File> result = new LinkedHashMap<>();
+        final List<String> failures = new LinkedList<>();
+        try {
+            for (Map.Entry<String, Future<File>> download : downloads.entrySet()) {
+                try {
+                    result.put(download.getKey(), download.getValue().get());
+                } catch (ExecutionException e) {
+                    failures.add(download.getKey() + ": " + e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            discard(downloads.values(), scheduled);
+            Thread.currentThread().interrupt();
+            throw new SWORDException("Interrupted while downloading remote content", e);
+        }
+
+        if (!failures.isEmpty()) {
+            discard(downloads.values(), scheduled);
+            StringBuilder sb = new StringBuilder("Cannot fetch remote content for ")
+                    .append(failures.size()).append(" file(s):");
+            for (String failure : failures) {
+                sb.append(' ').append(failure).append(';');
+            }
+            throw new SWORDException(sb.toString());
+        }
+        return result;
+    }
+
+    static void delete(Iterable<File> files) {
+        for (File f : files) {
+            if (f.exists() && !f.delete()) {
+                log.warn("Unsuccessful delete attempt for " + f.getAbsolutePath());
+            }
+        }
+    }
+
+    private static boolean isRemote(METSFile file) throws URISyntaxException {
+        if (file.isDeleteRequest() || !file.hasFLocat() || file.getURI() == null) return false;
+        final String scheme = file.getURI().getScheme();
+        return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+    }
+
+    /**
+     * Cancel all downloads and remove their target files. Downloads that are already running
+     * remove their target themselves once they finish.
+     */
+    private static void discard(Iterable<Future<File>> futures, List<Download> downloads) {
+        for (Future<File> future : futures) {
+            future.cancel(true);
+        }
+        for (Download download : downloads) {
+            download.discard();
+        }
+    }
+
+    /**
+     * Run the download right away if its host has a free slot, otherwise queue it until one of
+     * the running downloads from that host finishes.
+     */
+    private static Future<File> schedule(Download download) throws URISyntaxException {
+        final String host = String.valueOf(download.file.getURI().getHost()).toLowerCase();
+        final FutureTask<File> task = new FutureTask<>(download);
+        synchronized (hostQueues) {
+            HostQueue queue = hostQueues.get(host);
+            if (queue == null) {
+                queue = new HostQueue();
+                hostQueues.put(host, queue);
+            }
+            if (queue.running < PER_HOST_LIMIT) {
+                queue.running++;
+                execute(host, task);
+            } else {
+                queue.waiting.add(task);
+            }
+        }
+        return task;
+    }
+
+    private static void execute(final String host, final FutureTask<File> task) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    next(host);
+                }
+            }
+        });
+    }
+
+    private static void next(String host) {
+        synchronized (hostQueues) {
+            final HostQueue queue = hostQueues.get(host);
+            final FutureTask<File> next = queue.waiting.poll();
+            if (next != null) {
+                execute(host, next);
+            } else if (--queue.running == 0) {
+                hostQueues.remove(host);
+            }
+        }
+    }
+
+    private static class HostQueue {
+        private final Queue<FutureTask<File>> waiting = new LinkedList<>();
+        private int running;
+    }
+
+    private static class Download implements Callable<File> {
+        private final METSFile file;
+        private final File target;
+        private volatile boolean discarded;
+
+        Download(METSFile file, File dir) throws IOException {
+            this.file = file;
+            this.target = File.createTempFile("prefetch-", ".tmp", dir);
+        }
+
+        void discard() {
+            discarded = true;
+            delete(Collections.singleton(target));
+        }
+
+        @Override
+        public File call() throws Exception {
+            boolean complete = false;
+            try {
+                download(file.getURI());
+                complete = true;
+                return target;
+            } finally {
+                if (!complete || discarded) {
+                    delete(Collections.singleton(target));
+                }
+            }
+        }
+
+        private void download(URI uri) throws IOException, NoSuchAlgorithmException {
+            final String algorithm = hasChecksum() ? ChecksumType.algorithm(file) : null;
+            final HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setInstanceFollowRedirects(true);
+            try {
+                final int status = connection.getResponseCode();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException(String.format("GET %s returned HTTP %d", uri, status));
+                }
+                try (MultiDigestInputStream in = new MultiDigestInputStream(connection.getInputStream(), algorithms(algorithm))) {
+                    Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    assertChecksum(uri, algorithm, in.getDigests());
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private List<String> algorithms(String algorithm) {
+            final List<String> algorithms = new LinkedList<>();
+            algorithms.add(MultiDigestInputStream.MD5);
+            if (algorithm != null && !MultiDigestInputStream.MD5.equals(algorithm)) {
+                algorithms.add(algorithm);
+            }
+            return algorithms;
+        }
+
+        private void assertChecksum(URI uri, String algorithm, Map<String, String> digests) throws IOException {
+            if (algorithm != null) {
+                final String actual = digests.get(algorithm);
+                if (!file.getChecksum().equalsIgnoreCase(actual)) {
+                    throw new IOException(String.format("%s checksum mismatch for %s, expected %s but was %s",
+                            file.getChecksumType(), uri, file.getChecksum(), actual));
+                }
+            }
+        }
+
+        private boolean hasChecksum() {
+            return file.getChecksum() != null && !file.getChecksum().isEmpty()
+                    && file.getChecksumType() != null && !file.getChecksumType().isEmpty();
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraRepository;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connected FedoraRepository instances kept for reuse by later requests with the same credentials.
+ * <p/>
+ * A connection is used by one request at a time: it is borrowed for the request and given back
+ * afterwards. Only connections that served a request without error are kept. Other idle connections
+ * for the same credentials are only discarded if a request failed on the connection level, see
+ * {@link #isConnectionFailure(Throwable)}. At most `repository.pool.size`
+ * idle connections (default 16) are kept, for no longer than `repository.pool.idle` milliseconds
+ * (default five minutes).
+ */
+class RepositoryConnectionPool {
+
+    /**
+     * Creates and connects a new repository client.
+     */
+    interface Connector {
+        FedoraRepository connect() throws SWORDException;
+    }
+
+    private static final RepositoryConnectionPool instance = new RepositoryConnectionPool(
+            Integer.getInteger("repository.pool.size", 16),
+            Long.getLong("repository.pool.idle", TimeUnit.MINUTES.toMillis(5)));
+
+    private final int maxIdle;
+    private final long maxIdleTime;
+    private final Map<String, Deque<IdleConnection>> idle = new HashMap<>();
+    private int idleCount;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    RepositoryConnectionPool(int maxIdle, long maxIdleTime) {
+        this.maxIdle = maxIdle;
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    static RepositoryConnectionPool getInstance() {
+        return instance;
+    }
+
+    FedoraRepository borrow(String username, String password, Connector connector) throws SWORDException {
+        final String key = key(username, password);
+        synchronized (this) {
+            evictExpired();
+            final Deque<IdleConnection> connections = idle.get(key);
+            if (connections != null && !connections.isEmpty()) {
+                idleCount--;
+                hits.incrementAndGet();
+                final FedoraRepository repository = connections.pollFirst().repository;
+                if (connections.isEmpty()) idle.remove(key);
+                return repository;
+            }
+        }
+        misses.incrementAndGet();
+        return connector.connect();
+    }
+
+    /**
+     * Give back a connection after a request.
+     *
+     * @param healthy False if the request failed. The connection is discarded then.
+     */
+    void release(String username, String password, FedoraRepository repository, boolean healthy) {
+        if (!healthy) {
+            evictions.incrementAndGet();
+            return;
+        }
+        final String key = key(username, password);
+        synchronized (this) {
+            evictExpired();
+            if (idleCount >= maxIdle) {
+                evictOldest();
+            }
+            if (idleCount < maxIdle) {
+                Deque<IdleConnection> connections = idle.get(key);
+                if (connections == null) {
+                    connections = new ArrayDeque<>();
+                    idle.put(key, connections);
+                }
+                connections.addFirst(new IdleConnection(repository, System.currentTimeMillis()));
+                idleCount++;
+            }
+        }
+    }
+
+    /**
+     * Discard all idle connections with the given credentials.
+     */
+    void invalidate(String username, String password) {
+        synchronized (this) {
+            invalidate(key(username, password));
+        }
+    }
+
+    /**
+     * @return True if the failure was caused by I/O with the repository, e.g. a refused or reset
+     * connection. Idle connections to the same repository are likely to be broken as well then.
+     */
+    static boolean isConnectionFailure(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof IOException) return true;
+        }
+        return false;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    synchronized int getIdleCount() {
+        return idleCount;
+    }
+
+    private void invalidate(String key) {
+        final Deque<IdleConnection> connections = idle.remove(key);
+        if (connections != null) {
+            idleCount -= connections.size();
+            evictions.addAndGet(connections.size());
+        }
+    }
+
+    private void evictExpired() {
+        final long threshold = System.currentTimeMillis() - maxIdleTime;
+        final Iterator<Deque<IdleConnection>> it = idle.values().iterator();
+        while (it.hasNext()) {
+            final Deque<IdleConnection> connections = it.next();
+            while (!connections.isEmpty() && connections.peekLast().since < threshold) {
+                connections.pollLast();
+                idleCount--;
+                evictions.incrementAndGet();
+            }
+            if (connections.isEmpty()) it.remove();
+        }
+    }
+
+    private void evictOldest() {
+        Deque<IdleConnection> oldest = null;
+        for (Deque<IdleConnection> connections : idle.values()) {
+            if (oldest == null || connections.peekLast().since < oldest.peekLast().since) {
+                oldest = connections;
+            }
+        }
+        if (oldest != null) {
+            oldest.pollLast();
+            idleCount--;
+            evictions.incrementAndGet();
+            if (oldest.isEmpty()) idle.values().remove(oldest);
+        }
+    }
+
+    private static String key(String username, String password) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(String.valueOf(username).getBytes("UTF-8"));
+            md.update((byte) 0);
+            md.update(String.valueOf(password).getBytes("UTF-8"));
+            return Hex.encode(md.digest());
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException("SHA-256 with UTF-8 encoding has to be supported", e);
+        }
+    }
+
+    private static class IdleConnection {
+        final FedoraRepository repository;
+        final long since;
+
+        IdleConnection(FedoraRepository repository, long since) {
+            this.repository = repository;
+            this.since = since;
+        }
+    }
+
+}
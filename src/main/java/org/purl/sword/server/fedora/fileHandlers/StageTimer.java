@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time spent in the stages of a deposit.
+ * <p/>
+ * Each instance records the stages of one deposit. Stages may be recorded from different threads.
+ * Durations of all deposits are summed up per stage.
+ */
+class StageTimer {
+
+    enum Stage {PARSE, VALIDATE, STAGE_CONTENT, CONNECT, RESERVE_PID, BUILD, INGEST, CLEANUP}
+
+    private static final Map<Stage, AtomicLong> totalNanos = new EnumMap<>(Stage.class);
+    private static final Map<Stage, AtomicLong> counts = new EnumMap<>(Stage.class);
+
+    static {
+        for (Stage stage : Stage.values()) {
+            totalNanos.put(stage, new AtomicLong());
+            counts.put(stage, new AtomicLong());
+        }
+    }
+
+    private final Map<Stage, Long> durations = new EnumMap<>(Stage.class);
+
+    /**
+     * Record a stage that started at the given System.nanoTime() and ends now.
+     */
+    void record(Stage stage, long startNanos) {
+        final long duration = System.nanoTime() - startNanos;
+        synchronized (durations) {
+            final Long previous = durations.get(stage);
+            durations.put(stage, (previous == null) ? duration : previous + duration);
+        }
+        totalNanos.get(stage).addAndGet(duration);
+        counts.get(stage).incrementAndGet();
+    }
+
+    /**
+     * @return Duration of the stage in this deposit, or -1 if the stage wasn't recorded.
+     */
+    long getDuration(Stage stage, TimeUnit unit) {
+        synchronized (durations) {
+            final Long duration = durations.get(stage);
+            return (duration == null) ? -1 : unit.convert(duration, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    static long getTotalTime(Stage stage, TimeUnit unit) {
+        return unit.convert(totalNanos.get(stage).get(), TimeUnit.NANOSECONDS);
+    }
+
+    static long getCount(Stage stage) {
+        return counts.get(stage).get();
+    }
+
+    /**
+     * @return Recorded stages with their duration in milliseconds, in pipeline order.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        synchronized (durations) {
+            for (Map.Entry<Stage, Long> entry : durations.entrySet()) {
+                if (sb.length() > 0) sb.append(", ");
+                sb.append(entry.getKey()).append('=')
+                        .append(TimeUnit.NANOSECONDS.toMillis(entry.getValue())).append("ms");
+            }
+        }
+        return sb.toString();
+    }
+
+}
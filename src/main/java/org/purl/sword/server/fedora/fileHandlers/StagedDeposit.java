@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * Deposit body spooled to a staging file.
+ * <p/>
+ * Digests are computed while the body is copied, so checksums can be verified before
+ * the METS document gets parsed. The staged bytes can be read any number of times via
+ * a memory mapped view. Closing the staged deposit removes the staging file.
+ */
+public class StagedDeposit implements Closeable {
+
+    private static final Logger log = Logger.getLogger(StagedDeposit.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final long size;
+    private final Map<String, String> digests;
+    private MappedByteBuffer mappedBuffer;
+
+    private StagedDeposit(File file, long size, Map<String, String> digests) {
+        this.file = file;
+        this.size = size;
+        this.digests = digests;
+    }
+
+    /**
+     * Copy the deposit body to a new file in the staging directory.
+     * <p/>
+     * The staging directory is given by system property `deposit.staging.dir` and defaults to
+     * `java.io.tmpdir`.
+     */
+    public static StagedDeposit stage(InputStream in) throws IOException, NoSuchAlgorithmException {
+        final File dir = new File(System.getProperty("deposit.staging.dir", System.getProperty("java.io.tmpdir")));
+        final MultiDigestInputStream din = MultiDigestInputStream.forDeposit(in);
+        final File file = File.createTempFile("deposit-", ".xml", dir);
+        try {
+            long size = 0;
+            try (ReadableByteChannel source = Channels.newChannel(din);
+                 FileChannel target = new RandomAccessFile(file, "rw").getChannel()) {
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                while (source.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        size += target.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+            return new StagedDeposit(file, size, din.getDigests());
+        } catch (IOException | RuntimeException e) {
+            delete(file);
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public Map<String, String> getDigests() {
+        return digests;
+    }
+
+    public String getMd5() {
+        return digests.get(MultiDigestInputStream.MD5);
+    }
+
+    /**
+     * @return New input stream reading the staged bytes from the beginning, to be closed by the caller.
+     * Deposits too large to be mapped into memory are read from the staging file.
+     */
+    public InputStream openStream() throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        }
+        if (mappedBuffer == null) {
+            try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+                mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+        return new ByteBufferInputStream(mappedBuffer.duplicate());
+    }
+
+    @Override
+    public void close() {
+        mappedBuffer = null;
+        delete(file);
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            log.warn("Unsuccessful delete attempt for " + file.getAbsolutePath());
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.CDATA;
+import org.jdom.Comment;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.jdom.ProcessingInstruction;
+import org.jdom.Text;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static javax.xml.stream.XMLStreamConstants.*;
+
+/**
+ * METS container reading the deposit in a single StAX pass.
+ * <p/>
+ * Only the MODS, SLUB-INFO and QUCOSA-XML sections are turned into JDOM subtrees, since
+ * they become inline datastreams. File sections and the record status are picked up as
+ * plain attribute values while streaming. Everything else is skipped.
+ */
+public class StreamingMETSContainer extends AbstractMETSContainer {
+
+    private static final String P_METS = "/mets:mets";
+    private static final String P_METSHDR = P_METS + "/mets:metsHdr";
+    private static final String P_DMDSEC = P_METS + "/mets:dmdSec";
+    private static final String P_DMD_MDWRAP = P_DMDSEC + "/mets:mdWrap";
+    private static final String P_DMD_XMLDATA = P_DMD_MDWRAP + "/mets:xmlData";
+    private static final String P_MODS = P_DMD_XMLDATA + "/mods:mods";
+    private static final String P_QUCOSA = P_DMD_XMLDATA + "/Opus";
+    private static final String P_AMDSEC = P_METS + "/mets:amdSec";
+    private static final String P_TECHMD = P_AMDSEC + "/mets:techMD";
+    private static final String P_AMD_MDWRAP = P_TECHMD + "/mets:mdWrap";
+    private static final String P_AMD_XMLDATA = P_AMD_MDWRAP + "/mets:xmlData";
+    private static final String P_SLUB = P_AMD_XMLDATA + "/slub:info";
+    private static final String P_FILESEC = P_METS + "/mets:fileSec";
+    private static final String P_FILEGRP = P_FILESEC + "/mets:fileGrp";
+    private static final String P_FILE = P_FILEGRP + "/mets:file";
+    private static final String P_FLOCAT = P_FILE + "/mets:FLocat";
+
+    private static final Set<String> DESCEND_PATHS = new HashSet<>(Arrays.asList(
+            P_METS, P_DMDSEC, P_DMD_MDWRAP, P_DMD_XMLDATA, P_AMDSEC, P_TECHMD, P_AMD_MDWRAP, P_AMD_XMLDATA,
+            P_FILESEC, P_FILEGRP, P_FILE));
+
+    private final Map<String, String> digests;
+    private final List<Element> modsElements = new LinkedList<>();
+    private final List<METSFile> files = new LinkedList<>();
+    private Element slubInfoElement;
+    private Element qucosaXmlElement;
+    private String recordstatus;
+
+    // parser state
+    private String mdType;
+    private String otherMdType;
+    private String mdMimeType;
+    private String fileGrpUse;
+    private String[] fileAttributes;
+    private String[] fLocatAttributes;
+
+    public StreamingMETSContainer(InputStream in) throws NoSuchAlgorithmException, XMLStreamException, IOException {
+        MultiDigestInputStream din = MultiDigestInputStream.forDeposit(in);
+        // keep the parser from closing the stream, remaining bytes are needed for the digest
+        XMLStreamReader reader = XMLParserPool.createXMLStreamReader(new FilterInputStream(din) {
+            @Override
+            public void close() {
+            }
+        });
+        try {
+            parse(reader);
+        } finally {
+            reader.close();
+        }
+        din.drain();
+        digests = din.getDigests();
+    }
+
+    @Override
+    public Map<String, String> getDigests() {
+        return digests;
+    }
+
+    @Override
+    public List<Element> getModsRelatedItems() {
+        final List<Element> relatedItems = new LinkedList<>();
+        for (Element mods : modsElements) {
+            for (Object o : mods.getChildren("relatedItem", Namespaces.MODS)) {
+                relatedItems.add((Element) o);
+            }
+        }
+        return relatedItems;
+    }
+
+    @Override
+    protected Element getSectionElement(Section section) {
+        switch (section) {
+            case MODS:
+                return modsElements.isEmpty() ? null : modsElements.get(0);
+            case SLUBINFO:
+                return slubInfoElement;
+            case QUCOSAXML:
+                return qucosaXmlElement;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    protected List<METSFile> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    @Override
+    protected String getRecordstatusValue() {
+        return recordstatus;
+    }
+
+    @Override
+    protected String getPrimaryTitle() {
+        for (Element mods : modsElements) {
+            for (Object titleInfo : mods.getChildren("titleInfo", Namespaces.MODS)) {
+                Element title = ((Element) titleInfo).getChild("title", Namespaces.MODS);
+                if (title != null) {
+                    return title.getTextTrim();
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected List<Element> getIdentifierElements() {
+        final List<Element> identifiers = new LinkedList<>();
+        for (Element mods : modsElements) {
+            for (Object o : mods.getChildren("identifier", Namespaces.MODS)) {
+                identifiers.add((Element) o);
+            }
+        }
+        return identifiers;
+    }
+
+    private void parse(XMLStreamReader reader) throws XMLStreamException {
+        final Deque<String> path = new ArrayDeque<>();
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == START_ELEMENT) {
+                final String current = (path.isEmpty() ? "" : path.peek()) + "/" + qualifiedName(reader);
+                if (startElement(current, reader)) {
+                    continue;
+                }
+                if (DESCEND_PATHS.contains(current)) {
+                    path.push(current);
+                } else {
+                    skipElement(reader);
+                }
+            } else if (event == END_ELEMENT) {
+                endElement(path.pop());
+            }
+        }
+    }
+
+    /**
+     * @return True if the element has been consumed completely.
+     */
+    private boolean startElement(String current, XMLStreamReader reader) throws XMLStreamException {
+        switch (current) {
+            case P_METSHDR:
+                if (recordstatus == null) {
+                    recordstatus = reader.getAttributeValue(null, "RECORDSTATUS");
+                }
+                break;
+            case P_DMD_MDWRAP:
+            case P_AMD_MDWRAP:
+                mdType = reader.getAttributeValue(null, "MDTYPE");
+                otherMdType = reader.getAttributeValue(null, "OTHERMDTYPE");
+                mdMimeType = reader.getAttributeValue(null, "MIMETYPE");
+                break;
+            case P_MODS:
+                if ("MODS".equals(mdType)) {
+                    modsElements.add(buildSection(reader));
+                    return true;
+                }
+                break;
+            case P_QUCOSA:
+                if (qucosaXmlElement == null && isOtherMdType("QUCOSA-XML")) {
+                    qucosaXmlElement = buildSection(reader);
+                    return true;
+                }
+                break;
+            case P_SLUB:
+                if (slubInfoElement == null && isOtherMdType("SLUBINFO")) {
+                    slubInfoElement = buildSection(reader);
+                    return true;
+                }
+                break;
+            case P_FILEGRP:
+                fileGrpUse = reader.getAttributeValue(null, "USE");
+                break;
+            case P_FILE:
+                fileAttributes = new String[]{
+                        reader.getAttributeValue(null, "ID"),
+                        reader.getAttributeValue(null, "USE"),
+                        reader.getAttributeValue(null, "MIMETYPE"),
+                        reader.getAttributeValue(Namespaces.MEXT.getURI(), "LABEL"),
+                        reader.getAttributeValue(null, "CHECKSUM"),
+                        reader.getAttributeValue(null, "CHECKSUMTYPE")};
+                fLocatAttributes = null;
+                break;
+            case P_FLOCAT:
+                if (fLocatAttributes == null) {
+                    fLocatAttributes = new String[]{
+                            reader.getAttributeValue(Namespaces.XLINK.getURI(), "href"),
+                            reader.getAttributeValue(null, "USE")};
+                }
+                break;
+        }
+        return false;
+    }
+
+    private void endElement(String current) {
+        switch (current) {
+            case P_DMD_MDWRAP:
+            case P_AMD_MDWRAP:
+                mdType = null;
+                otherMdType = null;
+                mdMimeType = null;
+                break;
+            case P_FILEGRP:
+                fileGrpUse = null;
+                break;
+            case P_FILE:
+                final boolean hasFLocat = fLocatAttributes != null;
+                files.add(new METSFile(
+                        fileAttributes[0], fileAttributes[1], fileGrpUse, fileAttributes[2], fileAttributes[3],
+                        fileAttributes[4], fileAttributes[5],
+                        hasFLocat,
+                        hasFLocat ? fLocatAttributes[0] : null,
+                        hasFLocat ? fLocatAttributes[1] : null));
+                fileAttributes = null;
+                fLocatAttributes = null;
+                break;
+        }
+    }
+
+    private boolean isOtherMdType(String type) {
+        return "OTHER".equals(mdType) && type.equals(otherMdType);
+    }
+
+    /**
+     * Builds the section subtree and places it under a detached <mets:mdWrap>/<mets:xmlData>
+     * pair carrying the MIMETYPE attribute, so that it is accessible just like within the
+     * complete METS document.
+     */
+    private Element buildSection(XMLStreamReader reader) throws XMLStreamException {
+        final Element mdWrap = new Element("mdWrap", Namespaces.METS);
+        if (mdMimeType != null) {
+            mdWrap.setAttribute("MIMETYPE", mdMimeType);
+        }
+        final Element xmlData = new Element("xmlData", Namespaces.METS);
+        mdWrap.addContent(xmlData);
+        final Element section = buildElement(reader);
+        xmlData.addContent(section);
+        return section;
+    }
+
+    private Element buildElement(XMLStreamReader reader) throws XMLStreamException {
+        final Element element = new Element(reader.getLocalName(), namespace(reader.getPrefix(), reader.getNamespaceURI()));
+
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            final Namespace ns = namespace(reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+            if (!ns.getPrefix().equals(element.getNamespacePrefix())) {
+                element.addNamespaceDeclaration(ns);
+            }
+        }
+
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i),
+                    namespace(reader.getAttributePrefix(i), reader.getAttributeNamespace(i)));
+        }
+
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case START_ELEMENT:
+                    element.addContent(buildElement(reader));
+                    break;
+                case CHARACTERS:
+                case SPACE:
+                    element.addContent(new Text(reader.getText()));
+                    break;
+                case CDATA:
+                    element.addContent(new CDATA(reader.getText()));
+                    break;
+                case COMMENT:
+                    element.addContent(new Comment(reader.getText()));
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    element.addContent(new ProcessingInstruction(reader.getPITarget(), emptyIfNull(reader.getPIData())));
+                    break;
+                case END_ELEMENT:
+                    return element;
+            }
+        }
+        return element;
+    }
+
+    private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            final int event = reader.next();
+            if (event == START_ELEMENT) {
+                depth++;
+            } else if (event == END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static String qualifiedName(XMLStreamReader reader) {
+        final String uri = emptyIfNull(reader.getNamespaceURI());
+        final String localName = reader.getLocalName();
+        if (uri.isEmpty()) {
+            return localName;
+        } else if (uri.equals(Namespaces.METS.getURI())) {
+            return "mets:" + localName;
+        } else if (uri.equals(Namespaces.MODS.getURI())) {
+            return "mods:" + localName;
+        } else if (uri.equals(Namespaces.SLUB.getURI())) {
+            return "slub:" + localName;
+        } else {
+            return "{" + uri + "}" + localName;
+        }
+    }
+
+    private static Namespace namespace(String prefix, String uri) {
+        return Namespace.getNamespace(emptyIfNull(prefix), emptyIfNull(uri));
+    }
+
+    private static String emptyIfNull(String s) {
+        return (s == null) ? "" : s;
+    }
+
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes TEMPORARY deposit files in the background.
+ * <p/>
+ * Files are queued and deleted by a single worker thread. Failed deletes are retried with exponential
+ * backoff, starting at `reaper.retry.delay` milliseconds (default 1000), for up to `reaper.max.attempts`
+ * attempts (default 5). At most `reaper.queue.size` files (default 1024) are queued; if the queue is
+ * full, files are deleted right away by the calling thread.
+ * <p/>
+ * Queued files are recorded in the journal file given by `reaper.pending.file` and queued again after
+ * a restart. Queued and deleted files are appended to the journal; it is rewritten to the list of pending
+ * files by the reaper thread whenever the queue runs empty or the journal has grown too long.
+ * If `reaper.sweep.dir` is set, staged deposit and prefetch files (named `deposit-*` and `prefetch-*`)
+ * in that directory older than `reaper.sweep.age` milliseconds (default one day) are removed every
+ * `reaper.sweep.interval` milliseconds (default one hour). This catches files left behind by deposits
+ * that failed before their temporary files could be queued. Other files are never swept.
+ */
+public class TemporaryFileReaper {
+
+    private static final Logger log = Logger.getLogger(TemporaryFileReaper.class);
+
+    private static final int JOURNAL_SLACK = 1024;
+    private static final String[] SWEPT_PREFIXES = {"deposit-", "prefetch-"};
+
+    private static TemporaryFileReaper instance;
+
+    private final int capacity;
+    private final int maxAttempts;
+    private final long retryDelay;
+    private final File pendingFile;
+    private final ScheduledExecutorService executor;
+    private final Set<String> pending = new LinkedHashSet<>();
+    private int journalEntries; // guarded by pending
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final AtomicLong filesAbandoned = new AtomicLong();
+
+    TemporaryFileReaper(int capacity, int maxAttempts, long retryDelay, File pendingFile) {
+        this.capacity = capacity;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        this.pendingFile = pendingFile;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "temporary-file-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        restorePending();
+    }
+
+    /**
+     * @return The shared reaper, configured from system properties on first use.
+     */
+    public static synchronized TemporaryFileReaper getInstance() {
+        if (instance == null) {
+            final String pendingPath = System.getProperty("reaper.pending.file");
+            instance = new TemporaryFileReaper(
+                    Integer.getInteger("reaper.queue.size", 1024),
+                    Integer.getInteger("reaper.max.attempts", 5),
+                    Long.getLong("reaper.retry.delay", 1000L),
+                    (pendingPath == null) ? null : new File(pendingPath));
+            final String sweepDir = System.getProperty("reaper.sweep.dir");
+            if (sweepDir != null) {
+                instance.scheduleSweep(new File(sweepDir),
+                        Long.getLong("reaper.sweep.age", TimeUnit.DAYS.toMillis(1)),
+                        Long.getLong("reaper.sweep.interval", TimeUnit.HOURS.toMillis(1)));
+            }
+        }
+        return instance;
+    }
+
+    public void enqueue(Collection<File> files) {
+        final List<File> accepted = new LinkedList<>();
+        for (File file : files) {
+            if (queueDepth.incrementAndGet() > capacity) {
+                queueDepth.decrementAndGet();
+                log.warn("Reaper queue full, deleting " + file.getAbsolutePath() + " right away");
+                delete(file);
+            } else {
+                accepted.add(file);
+            }
+        }
+        if (accepted.isEmpty()) return;
+        synchronized (pending) {
+            for (File file : accepted) {
+                pending.add(file.getAbsolutePath());
+            }
+            appendToJournal('+', accepted);
+        }
+        for (File file : accepted) {
+            schedule(file, 1, 0);
+        }
+    }
+
+    /**
+     * Remove staged deposit and prefetch files in the given directory that were last modified more
+     * than `maxAge` milliseconds ago. The journal is never removed.
+     *
+     * @return Number of files removed
+     */
+    public int sweep(File dir, long maxAge) {
+        final File[] files = dir.listFiles();
+        if (files == null) return 0;
+        final long threshold = System.currentTimeMillis() - maxAge;
+        int swept = 0;
+        for (File file : files) {
+            if (isSweepable(file) && file.lastModified() < threshold && delete(file)) {
+                swept++;
+            }
+        }
+        if (swept > 0) {
+            log.info(String.format("Swept %d orphaned file(s) from %s", swept, dir.getAbsolutePath()));
+        }
+        return swept;
+    }
+
+    private boolean isSweepable(File file) {
+        if (!file.isFile()) return false;
+        if (pendingFile != null && (file.equals(pendingFile) || file.equals(new File(pendingFile.getPath() + ".tmp")))) {
+            return false;
+        }
+        for (String prefix : SWEPT_PREFIXES) {
+            if (file.getName().startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    public long getFilesDeleted() {
+        return filesDeleted.get();
+    }
+
+    /**
+     * @return Number of files that could not be deleted within the configured number of attempts.
+     */
+    public long getFilesAbandoned() {
+        return filesAbandoned.get();
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private void scheduleSweep(final File dir, final long maxAge, long interval) {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep(dir, maxAge);
+                } catch (RuntimeException e) {
+                    log.warn("Sweep of " + dir.getAbsolutePath() + " failed", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void schedule(final File file, final int attempt, long delay) {
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reap(file, attempt);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down, the file stays in the pending list
+            log.warn("Reaper is shut down, leaving " + file.getAbsolutePath() + " for the next start");
+        }
+    }
+
+    private void reap(File file, int attempt) {
+        if (delete(file)) {
+            done(file);
+        } else if (attempt < maxAttempts) {
+            schedule(file, attempt + 1, retryDelay << (attempt - 1));
+        } else {
+            log.warn(String.format("Giving up deleting %s after %d attempts", file.getAbsolutePath(), attempt));
+            filesAbandoned.incrementAndGet();
+            done(file);
+        }
+    }
+
+    private void done(File file) {
+        queueDepth.decrementAndGet();
+        synchronized (pending) {
+            pending.remove(file.getAbsolutePath());
+            if (pending.isEmpty() || journalEntries > pending.size() + JOURNAL_SLACK) {
+                persistPending();
+            } else {
+                appendToJournal('-', Collections.singletonList(file));
+            }
+        }
+    }
+
+    private boolean delete(File file) {
+        if (!file.exists()) return true;
+        final long size = file.length();
+        if (file.delete()) {
+            bytesReclaimed.addAndGet(size);
+            filesDeleted.incrementAndGet();
+            return true;
+        }
+        log.warn("Unsuccessful delete attempt for " + file.getAbsolutePath());
+        return false;
+    }
+
+    private void restorePending() {
+        if (pendingFile == null || !pendingFile.exists()) return;
+        try {
+            final Set<String> paths = new LinkedHashSet<>();
+            for (String line : FileUtils.readLines(pendingFile, "UTF-8")) {
+                final String entry = line.trim();
+                if (entry.isEmpty()) continue;
+                switch (entry.charAt(0)) {
+                    case '-':
+                        paths.remove(entry.substring(1));
+                        break;
+                    case '+':
+                        paths.add(entry.substring(1));
+                        break;
+                    default: // plain list of pending files
+                        paths.add(entry);
+                }
+            }
+            synchronized (pending) {
+                persistPending();
+            }
+            final List<File> files = new LinkedList<>();
+            for (String path : paths) {
+                files.add(new File(path));
+            }
+            if (!files.isEmpty()) {
+                log.info(String.format("Restoring %d pending temporary file(s) from %s",
+                        files.size(), pendingFile.getAbsolutePath()));
+                enqueue(files);
+            }
+        } catch (IOException e) {
+            log.warn("Cannot read pending temporary files from " + pendingFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Record queued (`+`) or deleted (`-`) files at the end of the journal.
+     */
+    private void appendToJournal(char operation, Collection<File> files) {
+        if (pendingFile == null) return;
+        final List<String> entries = new LinkedList<>();
+        for (File file : files) {
+            entries.add(operation + file.getAbsolutePath());
+        }
+        try {
+            FileUtils.writeLines(pendingFile, "UTF-8", entries, true);
+            journalEntries += entries.size();
+        } catch (IOException e) {
+            log.warn("Cannot record pending temporary files in " + pendingFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Replace the journal with the list of pending files.
+     */
+    private void persistPending() {
+        if (pendingFile == null) return;
+        try {
+            final File tmp = new File(pendingFile.getPath() + ".tmp");
+            FileUtils.writeLines(tmp, "UTF-8", pending);
+            if (!tmp.renameTo(pendingFile)) {
+                FileUtils.copyFile(tmp, pendingFile);
+                tmp.delete();
+            }
+            journalEntries = pending.size();
+        } catch (IOException e) {
+            log.warn("Cannot record pending temporary files in " + pendingFile.getAbsolutePath(), e);
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.Document;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pre-configured XML parsers for reading deposits.
+ * <p/>
+ * Each thread reuses its own SAXBuilder together with the underlying XMLReader. DTD loading and
+ * resolution of external entities are disabled for both SAX and StAX parsing. Input is read through
+ * a buffer of `xml.parser.buffer.size` bytes (default 64 KiB).
+ */
+public final class XMLParserPool {
+
+    private static final int BUFFER_SIZE = Integer.getInteger("xml.parser.buffer.size", 64 * 1024);
+
+    private static final AtomicLong created = new AtomicLong();
+    private static final AtomicLong acquired = new AtomicLong();
+
+    private static final EntityResolver NO_EXTERNAL_ENTITIES = new EntityResolver() {
+        @Override
+        public InputSource resolveEntity(String publicId, String systemId) {
+            return new InputSource(new StringReader(""));
+        }
+    };
+
+    private static final ThreadLocal<SAXBuilder> builders = new ThreadLocal<SAXBuilder>() {
+        @Override
+        protected SAXBuilder initialValue() {
+            created.incrementAndGet();
+            return createSAXBuilder();
+        }
+    };
+
+    private static final XMLInputFactory inputFactory = createInputFactory();
+
+    private XMLParserPool() {
+    }
+
+    public static Document build(InputStream in) throws JDOMException, IOException {
+        acquired.incrementAndGet();
+        return builders.get().build(new BufferedInputStream(in, BUFFER_SIZE));
+    }
+
+    public static XMLStreamReader createXMLStreamReader(InputStream in) throws XMLStreamException {
+        acquired.incrementAndGet();
+        return inputFactory.createXMLStreamReader(new BufferedInputStream(in, BUFFER_SIZE));
+    }
+
+    /**
+     * @return Number of SAXBuilder instances created, one per parsing thread.
+     */
+    public static long getCreated() {
+        return created.get();
+    }
+
+    /**
+     * @return Number of parse requests served.
+     */
+    public static long getAcquired() {
+        return acquired.get();
+    }
+
+    private static SAXBuilder createSAXBuilder() {
+        SAXBuilder builder = new SAXBuilder();
+        builder.setValidation(false);
+        builder.setReuseParser(true);
+        builder.setFastReconfigure(true);
+        builder.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        builder.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        builder.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        builder.setEntityResolver(NO_EXTERNAL_ENTITIES);
+        return builder;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+}
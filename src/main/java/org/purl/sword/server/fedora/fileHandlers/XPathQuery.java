@@ -24,20 +24,28 @@ import org.jdom.xpath.XPath;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+/**
+ * XPath expression bound to the METS, MODS, XLink and SLUB namespaces.
+ * <p/>
+ * JDOM XPath objects are not thread safe, so every evaluation borrows a compiled copy of the
+ * expression from a pool held by this instance. Copies are only compiled when all others are in
+ * use and are released together with the query. Instances can be shared between threads (see
+ * {@link XPathQueryCache}).
+ */
 public class XPathQuery {
-    private final XPath xpath;
+    private final String expression;
+    private final Queue<XPath> idle = new ConcurrentLinkedQueue<>();
 
     public XPathQuery(String xp) throws JDOMException {
-        xpath = XPath.newInstance(xp);
-        xpath.addNamespace(Namespaces.METS);
-        xpath.addNamespace(Namespaces.MODS);
-        xpath.addNamespace(Namespaces.XLINK);
-        xpath.addNamespace(Namespaces.SLUB);
+        expression = xp;
+        idle.add(compile(xp));
     }
 
     public Attribute selectAttribute(Document doc) throws JDOMException {
-        return (Attribute) xpath.selectSingleNode(doc);
+        return (Attribute) selectSingleNode(doc);
     }
 
     public String selectValue(Document doc) throws JDOMException {
@@ -50,11 +58,28 @@ public class XPathQuery {
     }
 
     public Element selectNode(Document doc) throws JDOMException {
-        return (Element) xpath.selectSingleNode(doc);
+        return (Element) selectSingleNode(doc);
     }
 
     public Element selectNode(Element element) throws JDOMException {
-        return (Element) xpath.selectSingleNode(element);
+        return (Element) selectSingleNode(element);
+    }
+
+    /**
+     * Evaluate with a value bound to an XPath variable, e.g. `$ref` in `slub:attachment[@ref=$ref]`.
+     */
+    public Element selectNode(Element element, String variable, Object value) throws JDOMException {
+        final XPath xpath = borrow();
+        try {
+            xpath.setVariable(variable, value);
+            try {
+                return (Element) xpath.selectSingleNode(element);
+            } finally {
+                xpath.setVariable(variable, null);
+            }
+        } finally {
+            idle.add(xpath);
+        }
     }
 
     public List<Element> selectNodes(Document doc) throws JDOMException {
@@ -65,12 +90,39 @@ public class XPathQuery {
         return getElements(element);
     }
 
+    private Object selectSingleNode(Object context) throws JDOMException {
+        final XPath xpath = borrow();
+        try {
+            return xpath.selectSingleNode(context);
+        } finally {
+            idle.add(xpath);
+        }
+    }
+
     private List<Element> getElements(Object context) throws JDOMException {
         LinkedList<Element> resultList = new LinkedList<>();
-        for (Object o : xpath.selectNodes(context)) {
-            resultList.add((Element) o);
+        final XPath xpath = borrow();
+        try {
+            for (Object o : xpath.selectNodes(context)) {
+                resultList.add((Element) o);
+            }
+        } finally {
+            idle.add(xpath);
         }
         return resultList;
     }
-}
 
+    private XPath borrow() throws JDOMException {
+        final XPath xpath = idle.poll();
+        return (xpath != null) ? xpath : compile(expression);
+    }
+
+    private static XPath compile(String xp) throws JDOMException {
+        final XPath xpath = XPath.newInstance(xp);
+        xpath.addNamespace(Namespaces.METS);
+        xpath.addNamespace(Namespaces.MODS);
+        xpath.addNamespace(Namespaces.XLINK);
+        xpath.addNamespace(Namespaces.SLUB);
+        return xpath;
+    }
+}
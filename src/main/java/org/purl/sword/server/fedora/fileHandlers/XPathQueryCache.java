@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.JDOMException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide cache of compiled XPath queries.
+ * <p/>
+ * Queries are kept in least-recently-used order. The maximum number of cached queries can be
+ * set via system property `xpath.cache.size`. Values should not be concatenated into query
+ * expressions but bound to variables using {@link XPathQuery#selectNode(org.jdom.Element, String, Object)}.
+ */
+public final class XPathQueryCache {
+
+    private static final int MAX_SIZE = Integer.getInteger("xpath.cache.size", 64);
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final Map<String, XPathQuery> queries = new LinkedHashMap<String, XPathQuery>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, XPathQuery> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private XPathQueryCache() {
+    }
+
+    public static XPathQuery get(String expression) throws JDOMException {
+        synchronized (queries) {
+            XPathQuery query = queries.get(expression);
+            if (query != null) {
+                hits.incrementAndGet();
+                return query;
+            }
+        }
+        misses.incrementAndGet();
+        final XPathQuery query = new XPathQuery(expression);
+        synchronized (queries) {
+            queries.put(expression, query);
+        }
+        return query;
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static int size() {
+        synchronized (queries) {
+            return queries.size();
+        }
+    }
+
+    public static void clear() {
+        synchronized (queries) {
+            queries.clear();
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+}
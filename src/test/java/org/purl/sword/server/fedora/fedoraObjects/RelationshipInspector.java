@@ -30,6 +30,8 @@ public class RelationshipInspector extends Relationship {
     }
 
     public List<Element> getElements() throws IllegalAccessException {
+        // ExtendedRelationship creates its RELS-EXT elements on serialization
+        obj.toXML();
         return Collections.unmodifiableList(obj._relationship);
     }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.junit.Test;
+import org.purl.sword.server.fedora.fedoraObjects.XMLInlineDatastream;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AttachmentRightsTest {
+
+    @Test
+    public void Reads_attachment_options() {
+        final AttachmentRights rights = AttachmentRights.read(slubInfo("ATT-1", "yes", null));
+
+        assertTrue(rights.hasArchivalValue("ATT-1"));
+        assertNull(rights.isDownloadable("ATT-1"));
+        assertNull(rights.hasArchivalValue("ATT-2"));
+    }
+
+    @Test
+    public void Keeps_existing_attachments_when_merging() {
+        final AttachmentRights rights = AttachmentRights.read(slubInfo("ATT-1", "no", "no"));
+        rights.addMissing(AttachmentRights.read(slubInfo("ATT-1", "yes", "yes", "ATT-2", "yes", "no")));
+
+        assertEquals(2, rights.size());
+        assertFalse(rights.hasArchivalValue("ATT-1"));
+        assertTrue(rights.hasArchivalValue("ATT-2"));
+    }
+
+    @Test
+    public void Writes_changed_attachments_only_once() throws Exception {
+        final XMLInlineDatastream slubInfo = slubInfo("ATT-1", "yes", "yes", "ATT-2", "no", "no");
+        final AttachmentRights rights = AttachmentRights.read(slubInfo);
+        rights.set("ATT-2", true, false);
+        rights.remove("ATT-1");
+        rights.set("ATT-3", false, true);
+        rights.writeTo(slubInfo);
+
+        final List attachments = slubInfo.toXML().getRootElement()
+                .getChild("rights", Namespaces.SLUB).getChildren("attachment", Namespaces.SLUB);
+        assertEquals(2, attachments.size());
+        assertAttachment("ATT-2", "yes", "no", (Element) attachments.get(0));
+        assertAttachment("ATT-3", "no", "yes", (Element) attachments.get(1));
+        assertFalse(rights.isModified());
+    }
+
+    @Test
+    public void Updates_existing_attachment_elements_in_place() {
+        final XMLInlineDatastream slubInfo = slubInfo("ATT-1", "yes", "yes", "ATT-2", "no", "no");
+        final Element rightsElement = slubInfo.toXML().getRootElement().getChild("rights", Namespaces.SLUB);
+        final Element first = rightsElement.getChild("attachment", Namespaces.SLUB);
+        first.setAttribute("note", "kept");
+        first.addContent(new Element("comment", Namespaces.SLUB).setText("kept"));
+        final XMLInlineDatastream stored = slubInfo("ATT-3", "yes", "no");
+        ((Element) stored.toXML().getRootElement().getChild("rights", Namespaces.SLUB)
+                .getChildren().get(0)).setAttribute("note", "copied");
+
+        final AttachmentRights rights = AttachmentRights.read(slubInfo);
+        rights.set("ATT-1", false, true);
+        rights.addMissing(AttachmentRights.read(stored));
+        rights.writeTo(slubInfo);
+
+        final List attachments = rightsElement.getChildren("attachment", Namespaces.SLUB);
+        assertEquals(3, attachments.size());
+        assertSame(first, attachments.get(0));
+        assertAttachment("ATT-1", "no", "yes", first);
+        assertEquals("kept", first.getAttributeValue("note"));
+        assertEquals("kept", first.getChildText("comment", Namespaces.SLUB));
+        assertAttachment("ATT-2", "no", "no", (Element) attachments.get(1));
+        assertEquals("copied", ((Element) attachments.get(2)).getAttributeValue("note"));
+    }
+
+    @Test
+    public void Leaves_unchanged_SLUB_INFO_alone() {
+        final XMLInlineDatastream slubInfo = slubInfo("ATT-1", "yes", "no");
+        final Element attachment = slubInfo.toXML().getRootElement()
+                .getChild("rights", Namespaces.SLUB).getChild("attachment", Namespaces.SLUB);
+        final AttachmentRights rights = AttachmentRights.read(slubInfo);
+        rights.set("ATT-1", true, false);
+        rights.writeTo(slubInfo);
+
+        assertSame(attachment, slubInfo.toXML().getRootElement()
+                .getChild("rights", Namespaces.SLUB).getChild("attachment", Namespaces.SLUB));
+    }
+
+    private void assertAttachment(String ref, String hasArchivalValue, String isDownloadable, Element attachment) {
+        assertEquals(ref, attachment.getAttributeValue("ref"));
+        assertEquals(hasArchivalValue, attachment.getAttributeValue("hasArchivalValue"));
+        assertEquals(isDownloadable, attachment.getAttributeValue("isDownloadable"));
+    }
+
+    private XMLInlineDatastream slubInfo(String... attachments) {
+        final Element rights = new Element("rights", Namespaces.SLUB);
+        for (int i = 0; i < attachments.length; i += 3) {
+            final Element attachment = new Element("attachment", Namespaces.SLUB);
+            attachment.setAttribute("ref", attachments[i]);
+            if (attachments[i + 1] != null) attachment.setAttribute("hasArchivalValue", attachments[i + 1]);
+            if (attachments[i + 2] != null) attachment.setAttribute("isDownloadable", attachments[i + 2]);
+            rights.addContent(attachment);
+        }
+        final Document info = new Document(new Element("info", Namespaces.SLUB).addContent(rights));
+        return new XMLInlineDatastream(AbstractMETSContainer.DS_ID_SLUBINFO, info);
+    }
+
+}
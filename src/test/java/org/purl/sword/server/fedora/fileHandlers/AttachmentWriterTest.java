@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.fedoraObjects.Datastream;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraRepository;
+import org.purl.sword.server.fedora.fedoraObjects.ManagedDatastream;
+import org.purl.sword.server.fedora.fedoraObjects.VoidDatastream;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.purl.sword.server.fedora.fedoraObjects.State.DELETED;
+
+public class AttachmentWriterTest {
+
+    private FedoraRepository repository;
+    private DatastreamLookupCache cache;
+
+    @Before
+    public void setUp() {
+        repository = mock(FedoraRepository.class);
+        cache = new DatastreamLookupCache(repository, "test:1", false);
+    }
+
+    @Test
+    public void Writes_all_attachments_in_parallel() throws Exception {
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                final int n = concurrent.incrementAndGet();
+                synchronized (maxConcurrent) {
+                    maxConcurrent.set(Math.max(maxConcurrent.get(), n));
+                }
+                Thread.sleep(50);
+                concurrent.decrementAndGet();
+                return null;
+            }
+        }).when(repository).addDatastream(anyString(), any(Datastream.class), anyString());
+
+        AttachmentWriter.writeAll(cache, attachments("ATT-1", "ATT-2", "ATT-3", "ATT-4", "ATT-5"), 2);
+
+        verify(repository).addDatastream(eq("test:1"), findById("ATT-5"), anyString());
+        assertEquals(2, maxConcurrent.get());
+    }
+
+    @Test
+    public void Continues_after_delete_request() throws Exception {
+        final VoidDatastream delete = new VoidDatastream("ATT-1");
+        delete.setState(DELETED);
+        final VoidDatastream add = new VoidDatastream("ATT-2");
+
+        AttachmentWriter.writeAll(cache, Arrays.<Datastream>asList(delete, add), 1);
+
+        verify(repository).addDatastream("test:1", add, null);
+    }
+
+    @Test
+    public void Reports_all_failed_writes() throws Exception {
+        doThrow(new SWORDException("boom")).when(repository)
+                .addDatastream(anyString(), findById("ATT-2"), anyString());
+        doThrow(new SWORDException("bang")).when(repository)
+                .addDatastream(anyString(), findById("ATT-4"), anyString());
+        try {
+            AttachmentWriter.writeAll(cache, attachments("ATT-1", "ATT-2", "ATT-3", "ATT-4"), 3);
+            fail("Expected SWORDException");
+        } catch (SWORDException e) {
+            assertTrue(e.getMessage().contains("2 attachment datastream(s)"));
+            assertTrue(e.getMessage().contains("ATT-2: boom"));
+            assertTrue(e.getMessage().contains("ATT-4: bang"));
+        }
+        verify(repository).addDatastream(eq("test:1"), findById("ATT-3"), anyString());
+    }
+
+    @Test
+    public void Sends_only_properties_when_stored_checksum_matches() throws Exception {
+        System.setProperty("datastream.skip.unchanged", "true");
+        try {
+            final Datastream stored = managed("ATT-1", "Old label", "SHA-256", "ABCDEF");
+            final Datastream deposit = managed("ATT-1", "New label", "sha256", "abcdef");
+            when(repository.hasDatastream("test:1", "ATT-1")).thenReturn(true);
+            when(repository.getDatastream("test:1", "ATT-1")).thenReturn(stored);
+
+            AttachmentWriter.writeAll(cache, Arrays.asList(deposit), 1);
+
+            verify(repository, never()).modifyDatastream(anyString(), eq(deposit), anyString());
+            verify(repository).modifyDatastream(eq("test:1"), any(VoidDatastream.class), anyString());
+        } finally {
+            System.clearProperty("datastream.skip.unchanged");
+        }
+    }
+
+    @Test
+    public void Skips_write_when_checksum_and_properties_match() throws Exception {
+        System.setProperty("datastream.skip.unchanged", "true");
+        try {
+            when(repository.hasDatastream("test:1", "ATT-1")).thenReturn(true);
+            when(repository.getDatastream("test:1", "ATT-1")).thenReturn(managed("ATT-1", "Label", "MD5", "abc"));
+
+            AttachmentWriter.writeAll(cache, Arrays.asList(managed("ATT-1", "Label", "MD5", "abc")), 1);
+
+            verify(repository, never()).modifyDatastream(anyString(), any(Datastream.class), anyString());
+        } finally {
+            System.clearProperty("datastream.skip.unchanged");
+        }
+    }
+
+    @Test
+    public void Uploads_content_when_checksum_differs() throws Exception {
+        System.setProperty("datastream.skip.unchanged", "true");
+        try {
+            final Datastream deposit = managed("ATT-1", "Label", "MD5", "abc");
+            when(repository.hasDatastream("test:1", "ATT-1")).thenReturn(true);
+            when(repository.getDatastream("test:1", "ATT-1")).thenReturn(managed("ATT-1", "Label", "MD5", "def"));
+
+            AttachmentWriter.writeAll(cache, Arrays.asList(deposit), 1);
+
+            verify(repository).modifyDatastream(eq("test:1"), eq(deposit), anyString());
+        } finally {
+            System.clearProperty("datastream.skip.unchanged");
+        }
+    }
+
+    private Datastream managed(String id, String label, String digestType, String digest) {
+        final Datastream ds = new ManagedDatastream(id, "application/pdf", "http://example.com/" + id);
+        ds.setLabel(label);
+        ds.setDigestType(digestType);
+        ds.setDigest(digest);
+        return ds;
+    }
+
+    private List<Datastream> attachments(String... ids) {
+        final Datastream[] datastreams = new Datastream[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            datastreams[i] = new VoidDatastream(ids[i]);
+        }
+        return Arrays.asList(datastreams);
+    }
+
+    private Datastream findById(final String id) {
+        return argThat(new BaseMatcher<Datastream>() {
+            @Override
+            public boolean matches(Object item) {
+                return item instanceof Datastream && id.equals(((Datastream) item).getId());
+            }
+
+            @Override
+            public void describeTo(Description description) {
+                description.appendText(id);
+            }
+        });
+    }
+
+}
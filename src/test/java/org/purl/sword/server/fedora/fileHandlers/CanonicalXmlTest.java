@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.commons.io.IOUtils;
+import org.jdom.Document;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class CanonicalXmlTest {
+
+    @Test
+    public void Ignores_prefixes_attribute_order_and_formatting() throws Exception {
+        assertEquals(
+                hash("<slub:info xmlns:slub=\"http://slub-dresden.de/\"><slub:rights a=\"1\" b=\"2\">  text </slub:rights></slub:info>"),
+                hash("<?xml version=\"1.0\"?>\n<info xmlns=\"http://slub-dresden.de/\">\n" +
+                        "    <!-- comment -->\n    <rights b=\"2\" a=\"1\">text</rights>\n</info>"));
+    }
+
+    @Test
+    public void Detects_changed_content() throws Exception {
+        assertNotEquals(
+                hash("<info xmlns=\"http://slub-dresden.de/\"><rights a=\"1\">text</rights></info>"),
+                hash("<info xmlns=\"http://slub-dresden.de/\"><rights a=\"2\">text</rights></info>"));
+        assertNotEquals(
+                hash("<info xmlns=\"http://slub-dresden.de/\"><rights>text</rights></info>"),
+                hash("<info xmlns=\"http://other/\"><rights>text</rights></info>"));
+    }
+
+    private String hash(String xml) throws Exception {
+        final Document document = XMLParserPool.build(IOUtils.toInputStream(xml));
+        return CanonicalXml.hash(document);
+    }
+
+}
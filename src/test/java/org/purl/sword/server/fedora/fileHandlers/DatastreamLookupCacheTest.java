@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.commons.io.IOUtils;
+import org.jdom.Element;
+import org.junit.Before;
+import org.junit.Test;
+import org.purl.sword.server.fedora.fedoraObjects.Datastream;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraRepository;
+import org.purl.sword.server.fedora.fedoraObjects.VoidDatastream;
+import org.purl.sword.server.fedora.fedoraObjects.XMLInlineDatastream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DatastreamLookupCacheTest {
+
+    private FedoraRepository repository;
+    private DatastreamLookupCache cache;
+
+    @Before
+    public void setUp() {
+        repository = mock(FedoraRepository.class);
+        cache = new DatastreamLookupCache(repository, "test:1", true);
+    }
+
+    @Test
+    public void Looks_up_datastream_existence_once() throws Exception {
+        when(repository.hasDatastream("test:1", "MODS")).thenReturn(true);
+
+        assertTrue(cache.hasDatastream("MODS"));
+        assertTrue(cache.hasDatastream("MODS"));
+
+        verify(repository, times(1)).hasDatastream("test:1", "MODS");
+        assertEquals(1, cache.getLookups());
+    }
+
+    @Test
+    public void Fetched_datastream_implies_existence() throws Exception {
+        final Datastream slubInfo = new VoidDatastream("SLUB-INFO");
+        when(repository.getDatastream("test:1", "SLUB-INFO")).thenReturn(slubInfo);
+
+        assertSame(slubInfo, cache.getDatastream("SLUB-INFO"));
+        assertSame(slubInfo, cache.getDatastream("SLUB-INFO"));
+        assertTrue(cache.hasDatastream("SLUB-INFO"));
+
+        verify(repository, times(1)).getDatastream("test:1", "SLUB-INFO");
+        verify(repository, times(0)).hasDatastream("test:1", "SLUB-INFO");
+    }
+
+    @Test
+    public void Detects_unchanged_inline_datastream() throws Exception {
+        when(repository.getDatastream("test:1", "SLUB-INFO")).thenReturn(slubInfo("<info xmlns=\"http://slub-dresden.de/\"/>"));
+
+        assertTrue(cache.isUnchanged(slubInfo("<slub:info xmlns:slub=\"http://slub-dresden.de/\">\n</slub:info>")));
+        assertFalse(cache.isUnchanged(slubInfo("<info xmlns=\"http://slub-dresden.de/\"><rights/></info>")));
+        assertEquals(1, cache.getSkippedWrites());
+    }
+
+    @Test
+    public void Does_not_compare_stored_versions_unless_enabled() throws Exception {
+        final DatastreamLookupCache lookupsOnly = new DatastreamLookupCache(repository, "test:1", false);
+        when(repository.getDatastream("test:1", "SLUB-INFO")).thenReturn(slubInfo("<info xmlns=\"http://slub-dresden.de/\"/>"));
+
+        assertFalse(lookupsOnly.isUnchanged(slubInfo("<info xmlns=\"http://slub-dresden.de/\"/>")));
+        assertEquals(0, lookupsOnly.getSkippedWrites());
+    }
+
+    @Test
+    public void Changes_to_fetched_datastream_count_as_changes() throws Exception {
+        when(repository.getDatastream("test:1", "SLUB-INFO")).thenReturn(slubInfo("<info xmlns=\"http://slub-dresden.de/\"/>"));
+
+        final XMLInlineDatastream stored = (XMLInlineDatastream) cache.getDatastream("SLUB-INFO");
+        stored.toXML().getRootElement().addContent(new Element("rights", Namespaces.SLUB));
+
+        assertFalse(cache.isUnchanged(stored));
+    }
+
+    @Test
+    public void Added_datastream_exists_afterwards() throws Exception {
+        final Datastream att = new VoidDatastream("ATT-1");
+
+        assertFalse(cache.hasDatastream("ATT-1"));
+        cache.addDatastream(att);
+
+        assertTrue(cache.hasDatastream("ATT-1"));
+        verify(repository).addDatastream("test:1", att, null);
+        verify(repository, times(1)).hasDatastream("test:1", "ATT-1");
+    }
+
+    private XMLInlineDatastream slubInfo(String xml) throws Exception {
+        return new XMLInlineDatastream("SLUB-INFO", XMLParserPool.build(IOUtils.toInputStream(xml)));
+    }
+
+}
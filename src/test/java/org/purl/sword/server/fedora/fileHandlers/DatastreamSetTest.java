@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.junit.Test;
+import org.purl.sword.server.fedora.fedoraObjects.AugmentedDatastream;
+import org.purl.sword.server.fedora.fedoraObjects.Datastream;
+import org.purl.sword.server.fedora.fedoraObjects.VoidDatastream;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DatastreamSetTest {
+
+    @Test
+    public void Finds_datastreams_by_DSID_and_attachment_prefix() {
+        final Datastream mods = new VoidDatastream("MODS");
+        final Datastream att1 = new VoidDatastream("ATT-1");
+        final Datastream att2 = new VoidDatastream("ATT-2");
+        final DatastreamSet datastreams = new DatastreamSet(Arrays.asList(att1, mods, att2));
+
+        assertSame(mods, datastreams.get("MODS"));
+        assertNull(datastreams.get("SLUB-INFO"));
+        assertEquals(Arrays.asList(att1, att2), datastreams.getAttachments());
+    }
+
+    @Test
+    public void Unwraps_augmented_datastreams() {
+        final Datastream att = new VoidDatastream("ATT-1");
+        final DatastreamSet datastreams = new DatastreamSet(Arrays.<Datastream>asList(
+                new AugmentedDatastream(att, true, false)));
+
+        assertSame(att, datastreams.get(0));
+        assertTrue(datastreams.getFileAttributes(att).hasArchivalValue());
+        assertFalse(datastreams.getFileAttributes(att).isDownloadable());
+    }
+
+    @Test
+    public void Follows_changed_DSIDs_after_reindex() {
+        final Datastream att = new VoidDatastream("ATT 1");
+        final DatastreamSet datastreams = new DatastreamSet(Arrays.asList(att));
+        datastreams.add(new VoidDatastream("MODS"));
+        assertTrue(datastreams.contains("MODS"));
+
+        att.setId("ATT-1");
+        datastreams.reindex();
+
+        assertSame(att, datastreams.get("ATT-1"));
+        assertEquals(1, datastreams.getAttachments().size());
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraObject;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraRepository;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class DepositJobQueueTest {
+
+    private static final long RETENTION = TimeUnit.DAYS.toMillis(1);
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile(getClass().getName(), "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void Records_completed_job_in_journal() throws Exception {
+        final DepositJobQueue queue = new DepositJobQueue(dir, 1, 10, RETENTION);
+        final FedoraRepository repository = mock(FedoraRepository.class);
+
+        final DepositJobQueue.Job job = queue.submit("INGEST", "test:1", "user", new DepositJobQueue.Task() {
+            @Override
+            public void run() throws Exception {
+                repository.ingest(new FedoraObject("test:1"));
+            }
+        });
+        queue.shutdown();
+
+        verify(repository).ingest(any(FedoraObject.class));
+        final DepositJobQueue.Job recorded = new DepositJobQueue(dir, 1, 10, RETENTION).getJob(job.getId());
+        assertEquals(DepositJobQueue.Status.COMPLETED, recorded.getStatus());
+        assertEquals("test:1", recorded.getPid());
+        assertEquals("INGEST", recorded.getType());
+        assertEquals(1, queue.getCompleted());
+    }
+
+    @Test
+    public void Records_failure_message() throws Exception {
+        final DepositJobQueue queue = new DepositJobQueue(dir, 1, 10, RETENTION);
+        final FedoraRepository repository = mock(FedoraRepository.class);
+        doThrow(new SWORDException("Object exists")).when(repository).ingest(any(FedoraObject.class));
+
+        final DepositJobQueue.Job job = queue.submit("INGEST", "test:1", "user", new DepositJobQueue.Task() {
+            @Override
+            public void run() throws Exception {
+                repository.ingest(new FedoraObject("test:1"));
+            }
+        });
+        queue.shutdown();
+
+        final DepositJobQueue.Job recorded = queue.getJob(job.getId());
+        assertEquals(DepositJobQueue.Status.FAILED, recorded.getStatus());
+        assertEquals("Object exists", recorded.getMessage());
+        assertEquals(1, queue.getFailed());
+    }
+
+    @Test
+    public void Rejects_jobs_when_queue_is_full() throws Exception {
+        final DepositJobQueue queue = new DepositJobQueue(dir, 1, 1, RETENTION);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DepositJobQueue.Task blocking = new DepositJobQueue.Task() {
+            @Override
+            public void run() throws Exception {
+                release.await();
+            }
+        };
+        queue.submit("INGEST", "test:1", "user", blocking);
+        queue.submit("INGEST", "test:2", "user", blocking);
+        try {
+            queue.submit("INGEST", "test:3", "user", blocking);
+            fail("Expected SWORDException");
+        } catch (SWORDException e) {
+            assertNotNull(e.getMessage());
+        } finally {
+            release.countDown();
+            queue.shutdown();
+        }
+        assertEquals(2, dir.list().length);
+    }
+
+    @Test
+    public void Removes_expired_job_records_on_restart() throws Exception {
+        final DepositJobQueue queue = new DepositJobQueue(dir, 1, 10, RETENTION);
+        final DepositJobQueue.Job job = queue.submit("INGEST", "test:1", "user", new DepositJobQueue.Task() {
+            @Override
+            public void run() throws Exception {
+            }
+        });
+        queue.shutdown();
+        Thread.sleep(10);
+
+        final DepositJobQueue restarted = new DepositJobQueue(dir, 1, 10, 5);
+
+        assertNull(restarted.getJob(job.getId()));
+        restarted.shutdown();
+    }
+
+    @Test
+    public void Marks_interrupted_jobs_as_failed_on_restart() throws Exception {
+        final DepositJobQueue queue = new DepositJobQueue(dir, 1, 10, RETENTION);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DepositJobQueue.Job job = queue.submit("UPDATE", "test:1", "user", new DepositJobQueue.Task() {
+            @Override
+            public void run() throws Exception {
+                started.countDown();
+                release.await();
+            }
+        });
+        started.await();
+
+        final DepositJobQueue restarted = new DepositJobQueue(dir, 1, 10, RETENTION);
+
+        final DepositJobQueue.Job recovered = restarted.getJob(job.getId());
+        assertEquals(DepositJobQueue.Status.FAILED, recovered.getStatus());
+        assertNotNull(recovered.getMessage());
+        release.countDown();
+        queue.shutdown();
+        restarted.shutdown();
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.junit.Test;
+import org.purl.sword.base.SWORDEntry;
+import org.purl.sword.base.SWORDException;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DepositReplayCacheTest {
+
+    private static final String KEY = DepositReplayCache.key("INGEST", "user", "collection:test", null, "md5");
+
+    @Test
+    public void Returns_result_of_completed_deposit() throws Exception {
+        final DepositReplayCache cache = new DepositReplayCache(10, 60000);
+        final SWORDEntry entry = new SWORDEntry();
+
+        assertNull(cache.begin(KEY));
+        cache.end(KEY, null, entry);
+
+        assertSame(entry, cache.begin(KEY));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void Does_not_remember_failed_deposits() throws Exception {
+        final DepositReplayCache cache = new DepositReplayCache(10, 60000);
+
+        assertNull(cache.begin(KEY));
+        cache.end(KEY, null, null);
+
+        assertNull(cache.begin(KEY));
+    }
+
+    @Test
+    public void Duplicate_waits_for_deposit_in_progress() throws Exception {
+        final DepositReplayCache cache = new DepositReplayCache(10, 60000);
+        final SWORDEntry entry = new SWORDEntry();
+        final AtomicReference<SWORDEntry> replayed = new AtomicReference<>();
+
+        assertNull(cache.begin(KEY));
+        final Thread duplicate = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replayed.set(cache.begin(KEY));
+                } catch (SWORDException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        duplicate.start();
+        while (cache.getWaits() == 0) {
+            Thread.sleep(5);
+        }
+        cache.end(KEY, null, entry);
+        duplicate.join();
+
+        assertSame(entry, replayed.get());
+    }
+
+    @Test
+    public void Forgets_expired_and_oldest_results() throws Exception {
+        final DepositReplayCache cache = new DepositReplayCache(2, 60000);
+        for (String md5 : new String[]{"a", "b", "c"}) {
+            final String key = DepositReplayCache.key("INGEST", "user", "collection:test", null, md5);
+            cache.begin(key);
+            cache.end(key, null, new SWORDEntry());
+        }
+        assertEquals(2, cache.size());
+
+        final DepositReplayCache expiring = new DepositReplayCache(2, 0);
+        expiring.begin(KEY);
+        expiring.end(KEY, null, new SWORDEntry());
+        assertNull(expiring.begin(KEY));
+    }
+
+    @Test
+    public void Later_deposit_to_same_object_forgets_earlier_result() throws Exception {
+        final DepositReplayCache cache = new DepositReplayCache(10, 60000);
+        final String updateA = DepositReplayCache.key("UPDATE", "user", "collection:test", "test:1", "a");
+        final String updateB = DepositReplayCache.key("UPDATE", "user", "collection:test", "test:1", "b");
+        final String other = DepositReplayCache.key("UPDATE", "user", "collection:test", "test:2", "a");
+
+        cache.begin(updateA);
+        cache.end(updateA, "test:1", new SWORDEntry());
+        cache.begin(other);
+        cache.end(other, "test:2", new SWORDEntry());
+        cache.begin(updateB);
+        cache.end(updateB, "test:1", new SWORDEntry());
+
+        assertNull(cache.begin(updateA));
+        assertNotNull(cache.begin(other));
+    }
+
+    @Test
+    public void Key_depends_on_target_object() {
+        assertNotEquals(
+                DepositReplayCache.key("UPDATE", "user", "collection:test", "test:1", "md5"),
+                DepositReplayCache.key("UPDATE", "user", "collection:test", "test:2", "md5"));
+    }
+
+}
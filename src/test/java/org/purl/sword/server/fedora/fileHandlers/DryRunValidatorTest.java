@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.purl.sword.base.SWORDException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DryRunValidatorTest {
+
+    @Test
+    public void Accepts_remote_file_locations() throws Exception {
+        DryRunValidator.validate(new METSContainer(getClass().getResourceAsStream("/mets_url_file.xml")));
+    }
+
+    @Test
+    public void Reports_unreadable_files() throws Exception {
+        try {
+            DryRunValidator.validate(new METSContainer(getClass().getResourceAsStream("/mets_ok.xml")));
+            fail("Expected SWORDException");
+        } catch (SWORDException e) {
+            assertTrue(e.getMessage().contains("ATT-1: cannot read"));
+        }
+    }
+
+    @Test
+    public void Accepts_checksum_types_that_cannot_be_computed() throws Exception {
+        final String mets = IOUtils.toString(getClass().getResourceAsStream("/mets_file_checksum.xml"), "UTF-8")
+                .replace("CHECKSUMTYPE=\"SHA-512\"", "CHECKSUMTYPE=\"CRC32\"")
+                .replace("file:/Attachment.pdf", "http://example.com/Attachment.pdf");
+        DryRunValidator.validate(new METSContainer(IOUtils.toInputStream(mets, "UTF-8")));
+    }
+
+    @Test
+    public void Reports_all_problems_together() throws Exception {
+        final String mets = IOUtils.toString(getClass().getResourceAsStream("/mets_file_checksum.xml"), "UTF-8")
+                .replace("CHECKSUMTYPE=\"SHA-512\"", "CHECKSUMTYPE=\"SHA3\"")
+                .replace("file:/Attachment.pdf", "ftp://example.com/Attachment.pdf");
+        try {
+            DryRunValidator.validate(new METSContainer(IOUtils.toInputStream(mets, "UTF-8")));
+            fail("Expected SWORDException");
+        } catch (SWORDException e) {
+            assertTrue(e.getMessage().contains("2 problem(s)"));
+            assertTrue(e.getMessage().contains("unsupported URL scheme ftp"));
+            assertTrue(e.getMessage().contains("unsupported checksum type SHA3"));
+        }
+    }
+
+}
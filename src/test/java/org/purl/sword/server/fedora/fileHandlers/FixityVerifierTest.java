@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.purl.sword.base.SWORDException;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FixityVerifierTest {
+
+    private static final String MD5_ABC = "900150983cd24fb0d6963f7d28e17f72";
+    private static final String SHA256_ABC = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile(getClass().getName(), ".txt");
+        file.deleteOnExit();
+        FileUtils.writeStringToFile(file, "abc");
+    }
+
+    @Test
+    public void Accepts_matching_checksums() throws Exception {
+        FixityVerifier.verify(Arrays.asList(
+                localFile("ATT-1", MD5_ABC.toUpperCase(), "MD5"),
+                localFile("ATT-2", SHA256_ABC, "SHA-256")));
+    }
+
+    @Test
+    public void Ignores_files_without_checksum() throws Exception {
+        FixityVerifier.verify(Arrays.asList(
+                new METSFile("ATT-1", null, null, "text/plain", null, null, null, true, "file:/does/not/exist", null)));
+    }
+
+    @Test
+    public void Reports_every_failing_file() throws Exception {
+        try {
+            FixityVerifier.verify(Arrays.asList(
+                    localFile("ATT-1", MD5_ABC, "MD5"),
+                    localFile("ATT-2", SHA256_ABC, "MD5"),
+                    new METSFile("ATT-3", null, null, "text/plain", null, MD5_ABC, "MD5", true, "file:/does/not/exist", null),
+                    localFile("ATT-4", MD5_ABC, "SHA3")));
+            fail("Expected SWORDException");
+        } catch (SWORDException e) {
+            assertTrue(e.getMessage().contains("3 file(s)"));
+            assertTrue(e.getMessage().contains("ATT-2: MD5 checksum mismatch"));
+            assertTrue(e.getMessage().contains("ATT-3: file"));
+            assertTrue(e.getMessage().contains("ATT-4: unsupported checksum type"));
+        }
+    }
+
+    @Test
+    public void Skips_checksum_types_that_cannot_be_computed() throws Exception {
+        FixityVerifier.verify(Arrays.asList(
+                localFile("ATT-1", "00000000", "CRC32"),
+                localFile("ATT-2", "00000000", "Adler-32")));
+    }
+
+    private METSFile localFile(String id, String checksum, String checksumType) {
+        return new METSFile(id, null, null, "text/plain", null, checksum, checksumType, true,
+                file.toURI().toString(), null);
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.junit.Test;
+import org.purl.sword.server.fedora.fedoraObjects.Datastream;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class METSContainerTest {
+
+    @Test
+    public void Section_datastreams_are_built_once() throws Exception {
+        final METSContainer container = load("/mets_ok.xml");
+        assertSame(container.getModsDatastream(), container.getModsDatastream());
+        assertSame(container.getSlubInfoDatastream(), container.getSlubInfoDatastream());
+        assertSame(container.getQucosaXmlDatastream(), container.getQucosaXmlDatastream());
+        assertSame(container.getDublinCore(), container.getDublinCore());
+    }
+
+    @Test
+    public void Datastream_list_contains_cached_datastreams() throws Exception {
+        final METSContainer container = load("/mets_ok.xml");
+        final List<Datastream> datastreams = container.getDatastreams();
+        assertSame(container.getModsDatastream(), findDatastream("MODS", datastreams));
+        assertSame(container.getQucosaXmlDatastream(), findDatastream("QUCOSA-XML", datastreams));
+    }
+
+    @Test
+    public void Returned_lists_can_be_modified_by_caller() throws Exception {
+        final METSContainer container = load("/mets_ok.xml");
+        final List<Datastream> first = container.getAugmentedFileDatastreams();
+        first.clear();
+        final List<Datastream> second = container.getAugmentedFileDatastreams();
+        assertNotSame(first, second);
+        assertEquals(1, second.size());
+    }
+
+    @Test
+    public void Indexes_files_by_ID() throws Exception {
+        final METSContainer container = load("/mets_ok.xml");
+        assertEquals("application/pdf", container.getFile("ATT-1").getMimetype());
+        assertNull(container.getFile("ATT-2"));
+    }
+
+    private Datastream findDatastream(String dsid, List<Datastream> datastreams) {
+        for (Datastream ds : datastreams) {
+            if (ds.getId().equals(dsid)) return ds;
+        }
+        return null;
+    }
+
+    private METSContainer load(String metsFile) throws Exception {
+        return new METSContainer(getClass().getResourceAsStream(metsFile));
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class MultiDigestInputStreamTest {
+
+    private static final String MD5_ABC = "900150983cd24fb0d6963f7d28e17f72";
+    private static final String SHA256_ABC = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @After
+    public void clearProperty() {
+        System.clearProperty("deposit.digest.algorithms");
+    }
+
+    @Test
+    public void Computes_all_digests_in_one_pass() throws Exception {
+        MultiDigestInputStream in = new MultiDigestInputStream(
+                IOUtils.toInputStream("abc"), Arrays.asList("MD5", "SHA-256"));
+        in.drain();
+        final Map<String, String> digests = in.getDigests();
+        assertEquals(MD5_ABC, digests.get("MD5"));
+        assertEquals(SHA256_ABC, digests.get("SHA-256"));
+    }
+
+    @Test
+    public void Deposit_algorithms_always_include_MD5() throws Exception {
+        System.setProperty("deposit.digest.algorithms", "sha-256, SHA-512");
+        MultiDigestInputStream in = MultiDigestInputStream.forDeposit(IOUtils.toInputStream("abc"));
+        in.drain();
+        assertEquals(Arrays.asList("MD5", "SHA-256", "SHA-512"), Arrays.asList(in.getDigests().keySet().toArray()));
+    }
+
+    @Test
+    public void Container_provides_configured_digests() throws Exception {
+        System.setProperty("deposit.digest.algorithms", "SHA-256");
+        final METSContainer container = new METSContainer(getClass().getResourceAsStream("/mets_update.xml"));
+        final MultiDigestInputStream reference = new MultiDigestInputStream(
+                getClass().getResourceAsStream("/mets_update.xml"), Arrays.asList("SHA-256"));
+        reference.drain();
+        assertEquals("9a8d972d972eb799d989d0d2307c9822", container.getMd5());
+        assertEquals(reference.getDigests().get("SHA-256"), container.getDigest("sha-256"));
+    }
+
+    @Test
+    public void Skips_nothing_for_non_positive_count() throws Exception {
+        MultiDigestInputStream in = new MultiDigestInputStream(
+                IOUtils.toInputStream("abc"), Arrays.asList("MD5"));
+        assertEquals(0, in.skip(-1));
+        assertEquals(0, in.skip(0));
+        in.drain();
+        assertEquals(MD5_ABC, in.getDigests().get("MD5"));
+    }
+
+    @Test
+    public void Encodes_hex_with_leading_zeros() {
+        assertEquals("00ff7f80", Hex.encode(new byte[]{0, (byte) 0xff, 0x7f, (byte) 0x80}));
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.junit.Test;
+import org.purl.sword.base.SWORDException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ObjectLocksTest {
+
+    @Test
+    public void Serializes_modifications_of_same_object() throws Exception {
+        final ObjectLocks locks = new ObjectLocks(10000);
+        final CountDownLatch locked = new CountDownLatch(1);
+        final AtomicBoolean released = new AtomicBoolean();
+
+        locks.lock("test:1");
+        final Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    locked.countDown();
+                    locks.lock("test:1");
+                    assertTrue("Lock should have been released before", released.get());
+                    locks.unlock("test:1");
+                } catch (SWORDException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        other.start();
+        locked.await();
+        Thread.sleep(50);
+        released.set(true);
+        locks.unlock("test:1");
+        other.join();
+
+        assertEquals(2, locks.getAcquisitions());
+        assertEquals(1, locks.getContended());
+        assertTrue(locks.getMaxWaitTime(TimeUnit.MILLISECONDS) >= 40);
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    public void Modifications_of_different_objects_do_not_wait() throws Exception {
+        final ObjectLocks locks = new ObjectLocks(0);
+        locks.lock("test:1");
+        final Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    locks.lock("test:2");
+                    locks.unlock("test:2");
+                } catch (SWORDException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        other.start();
+        other.join();
+        locks.unlock("test:1");
+
+        assertEquals(0, locks.getContended());
+    }
+
+    @Test
+    public void Gives_up_after_timeout() throws Exception {
+        final ObjectLocks locks = new ObjectLocks(10);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch locked = new CountDownLatch(1);
+        final Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    locks.lock("test:1");
+                    locked.countDown();
+                    release.await();
+                    locks.unlock("test:1");
+                } catch (SWORDException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        holder.start();
+        locked.await();
+        try {
+            locks.lock("test:1");
+            fail("Expected SWORDException");
+        } catch (SWORDException e) {
+            assertFalse(e.getMessage().isEmpty());
+        } finally {
+            release.countDown();
+            holder.join();
+        }
+        assertEquals(0, locks.size());
+    }
+
+}
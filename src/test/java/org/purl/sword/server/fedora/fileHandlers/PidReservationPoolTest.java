@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraRepository;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PidReservationPoolTest {
+
+    private static final String USER = "sword";
+
+    private FedoraRepository repository;
+    private RepositoryConnectionPool.Connector connector;
+
+    @Before
+    public void setUp() throws Exception {
+        final AtomicInteger counter = new AtomicInteger();
+        repository = mock(FedoraRepository.class);
+        when(repository.mintPid()).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                return "test:" + counter.incrementAndGet();
+            }
+        });
+        connector = new RepositoryConnectionPool.Connector() {
+            @Override
+            public FedoraRepository connect() throws SWORDException {
+                return repository;
+            }
+        };
+    }
+
+    @Test
+    public void Mints_directly_while_pool_is_empty() throws Exception {
+        final PidReservationPool pool = new PidReservationPool(10, 2);
+
+        assertTrue(pool.nextPid(USER, repository, connector).startsWith("test:"));
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void Hands_out_reserved_PIDs_after_refill() throws Exception {
+        final PidReservationPool pool = new PidReservationPool(10, 2);
+        pool.nextPid(USER, repository, connector);
+        awaitAvailable(pool, USER, 10);
+
+        final Set<String> pids = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            pids.add(pool.nextPid(USER, repository, connector));
+        }
+
+        assertEquals(5, pids.size());
+        assertEquals(5, pool.getHandedOut());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void Does_not_hand_out_PIDs_reserved_for_another_user() throws Exception {
+        final PidReservationPool pool = new PidReservationPool(10, 2);
+        pool.nextPid(USER, repository, connector);
+        awaitAvailable(pool, USER, 10);
+
+        final FedoraRepository other = mock(FedoraRepository.class);
+        when(other.mintPid()).thenReturn("other:1");
+        final String pid = pool.nextPid("other", other, new RepositoryConnectionPool.Connector() {
+            @Override
+            public FedoraRepository connect() throws SWORDException {
+                return other;
+            }
+        });
+
+        assertEquals("other:1", pid);
+        assertEquals(10, pool.getAvailable(USER));
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void Counts_discarded_PIDs_as_waste() throws Exception {
+        final PidReservationPool pool = new PidReservationPool(10, 2);
+        pool.nextPid(USER, repository, connector);
+        awaitAvailable(pool, USER, 10);
+
+        pool.clear();
+
+        assertEquals(0, pool.getAvailable(USER));
+        assertEquals(10, pool.getWasted());
+    }
+
+    private void awaitAvailable(PidReservationPool pool, String username, int n) throws InterruptedException {
+        for (int i = 0; i < 100 && pool.getAvailable(username) < n; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, pool.getAvailable(username));
+    }
+
+}
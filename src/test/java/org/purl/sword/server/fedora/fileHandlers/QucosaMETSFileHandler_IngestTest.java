@@ -23,6 +23,7 @@ import org.jdom.Element;
 import org.jdom.Namespace;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.powermock.api.mockito.PowerMockito;
 import org.purl.sword.base.SWORDEntry;
 import org.purl.sword.base.SWORDException;
 import org.purl.sword.server.fedora.JDomHelper;
@@ -30,6 +31,7 @@ import org.purl.sword.server.fedora.baseExtensions.DepositCollection;
 import org.purl.sword.server.fedora.fedoraObjects.Datastream;
 import org.purl.sword.server.fedora.fedoraObjects.DublinCore;
 import org.purl.sword.server.fedora.fedoraObjects.FedoraObject;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraRepository;
 import org.purl.sword.server.fedora.fedoraObjects.LocalDatastream;
 import org.purl.sword.server.fedora.fedoraObjects.ManagedDatastream;
 import org.purl.sword.server.fedora.fedoraObjects.Relationship;
@@ -47,6 +49,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 public class QucosaMETSFileHandler_IngestTest extends QucosaMETSFileHandler_AbstractTest {
@@ -99,6 +103,18 @@ public class QucosaMETSFileHandler_IngestTest extends QucosaMETSFileHandler_Abst
                 "MODS", "application/mods+xml", State.ACTIVE, true, "Object Bibliographic Metadata");
     }
 
+    @Test
+    public void noOpDepositDoesNotUseRepository() throws Exception {
+        DepositCollection deposit = buildDeposit(METS_FILE_URL);
+        deposit.setNoOp(true);
+
+        new QucosaMETSFileHandler().ingestDeposit(deposit, buildServiceDocument());
+
+        PowerMockito.verifyNew(FedoraRepository.class, never()).withArguments(any(), any(), any());
+        verify(mockFedoraRepository, never()).connect();
+        verify(mockFedoraRepository, never()).mintPid();
+    }
+
     @Test
     public void hasProperQucosaXmlDatastream() throws Exception {
         validateDatastream(buildDeposit(METS_FILE_OK),
@@ -180,6 +196,18 @@ public class QucosaMETSFileHandler_IngestTest extends QucosaMETSFileHandler_Abst
         fh.ingestDeposit(buildDeposit(METS_FILE_BAD), buildServiceDocument());
     }
 
+    @Test
+    public void missingMODSIsRejectedBeforeConnecting() throws Exception {
+        FileHandler fh = new QucosaMETSFileHandler();
+        try {
+            fh.ingestDeposit(buildDeposit(METS_FILE_BAD), buildServiceDocument());
+            fail("Expected SWORDException");
+        } catch (SWORDException e) {
+            verify(mockFedoraRepository, never()).connect();
+            verify(mockFedoraRepository, never()).mintPid();
+        }
+    }
+
     @Test(expected = SWORDException.class)
     public void exceptionOnInvalidFileLink() throws Exception {
         FileHandler fh = new QucosaMETSFileHandler();
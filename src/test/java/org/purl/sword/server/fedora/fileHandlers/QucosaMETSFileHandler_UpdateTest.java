@@ -23,12 +23,14 @@ import org.jdom.Document;
 import org.jdom.Element;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.powermock.api.mockito.PowerMockito;
 import org.purl.sword.atom.Link;
 import org.purl.sword.base.SWORDEntry;
 import org.purl.sword.base.SWORDException;
 import org.purl.sword.server.fedora.JDomHelper;
 import org.purl.sword.server.fedora.baseExtensions.DepositCollection;
 import org.purl.sword.server.fedora.fedoraObjects.Datastream;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraRepository;
 import org.purl.sword.server.fedora.fedoraObjects.Relationship;
 import org.purl.sword.server.fedora.fedoraObjects.State;
 import org.purl.sword.server.fedora.fedoraObjects.XMLInlineDatastream;
@@ -36,6 +38,7 @@ import org.purl.sword.server.fedora.fedoraObjects.XMLInlineDatastream;
 import static org.custommonkey.xmlunit.XMLAssert.assertXpathNotExists;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
@@ -256,6 +259,18 @@ public class QucosaMETSFileHandler_UpdateTest extends QucosaMETSFileHandler_Abst
         verify(mockFedoraRepository, never()).modifyDatastream(eq("test:1"), argumentCaptor.capture(), anyString());
     }
 
+    @Test
+    public void No_op_update_does_not_use_repository() throws Exception {
+        DepositCollection deposit = buildDeposit(METS_JUST_SLUBINFO, "test:1");
+        deposit.setNoOp(true);
+
+        new QucosaMETSFileHandler().updateDeposit(deposit, buildServiceDocument());
+
+        PowerMockito.verifyNew(FedoraRepository.class, never()).withArguments(any(), any(), any());
+        verify(mockFedoraRepository, never()).connect();
+        verify(mockFedoraRepository, never()).mintPid();
+    }
+
     private Document buildSlubInfoWithAttachments(String... params) {
         if ((params.length == 0) || params.length % 2 != 0) {
             throw new IllegalArgumentException("Expect even number of parameters");
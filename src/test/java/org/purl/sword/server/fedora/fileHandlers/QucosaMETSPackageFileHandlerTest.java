@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.purl.sword.base.SWORDEntry;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class QucosaMETSPackageFileHandlerTest extends QucosaMETSFileHandler_AbstractTest {
+
+    public static final String PACKAGE_MEDIA_TYPE = "application/vnd.qucosa.mets+zip";
+
+    @Test
+    public void handlesQucosaMETSPackages() throws Exception {
+        FileHandler fh = new QucosaMETSPackageFileHandler();
+        assertTrue(fh.isHandled(PACKAGE_MEDIA_TYPE, ""));
+    }
+
+    @Test
+    public void ingestsEveryPackageEntry() throws Exception {
+        FileHandler fh = new QucosaMETSPackageFileHandler();
+
+        SWORDEntry result = fh.ingestDeposit(
+                buildDeposit(new ByteArrayInputStream(zip(METS_FILE_OK, METS_WITH_RECORDSTATE))),
+                buildServiceDocument());
+
+        verify(mockFedoraRepository, times(2)).ingest(any(FedoraObject.class));
+        assertTrue(result.getTreatment().contains("mets_ok.xml: test:"));
+        assertTrue(result.getTreatment().contains("mets_with_recordstate.xml: test:"));
+    }
+
+    @Test
+    public void reportsFailedEntriesInTreatment() throws Exception {
+        FileHandler fh = new QucosaMETSPackageFileHandler();
+
+        SWORDEntry result = fh.ingestDeposit(
+                buildDeposit(new ByteArrayInputStream(zip(METS_FILE_OK, METS_FILE_BAD))),
+                buildServiceDocument());
+
+        verify(mockFedoraRepository).ingest(any(FedoraObject.class));
+        assertTrue(result.getTreatment().contains("mets_missing_mods.xml: FAILED"));
+    }
+
+    @Test
+    public void doesNotMintPidsForInvalidEntries() throws Exception {
+        FileHandler fh = new QucosaMETSPackageFileHandler();
+
+        fh.ingestDeposit(
+                buildDeposit(new ByteArrayInputStream(zip(METS_FILE_BAD, METS_FILE_OK))),
+                buildServiceDocument());
+
+        verify(mockFedoraRepository, times(1)).mintPid();
+    }
+
+    @Test
+    public void failsIfNoEntryCanBeIngested() throws Exception {
+        FileHandler fh = new QucosaMETSPackageFileHandler();
+        try {
+            fh.ingestDeposit(
+                    buildDeposit(new ByteArrayInputStream(zip(METS_FILE_BAD))),
+                    buildServiceDocument());
+            fail("Expected SWORDException");
+        } catch (SWORDException e) {
+            assertTrue(e.getMessage().contains("mets_missing_mods.xml"));
+        }
+    }
+
+    private byte[] zip(String... metsFileNames) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (String name : metsFileNames) {
+                zip.putNextEntry(new ZipEntry(name.substring(1)));
+                IOUtils.copy(System.class.getResourceAsStream(name), zip);
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+}
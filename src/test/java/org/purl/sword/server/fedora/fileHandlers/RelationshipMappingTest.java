@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.Element;
+import org.junit.Test;
+import org.purl.sword.server.fedora.fedoraObjects.ExtendedRelationship;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class RelationshipMappingTest {
+
+    @Test
+    public void Maps_relatedItem_types() {
+        assertEquals("isPartOf", RelationshipMapping.relationshipType("host"));
+        assertEquals("isConstituentOf", RelationshipMapping.relationshipType("series"));
+        assertEquals("otherVersion", RelationshipMapping.relationshipType("otherVersion"));
+    }
+
+    @Test
+    public void Adds_each_relationship_once() {
+        final ExtendedRelationship rels = new ExtendedRelationship();
+        RelationshipMapping.addRelatedItems(Arrays.asList(
+                relatedItem("series", "urn:nbn:de:1234-56", "qucosa:56"),
+                relatedItem("series", "urn:nbn:de:1234-56"),
+                relatedItem("host", "urn:nbn:de:1234-56")), rels);
+
+        assertEquals(3, rels.size());
+    }
+
+    private Element relatedItem(String type, String... identifiers) {
+        final Element relatedItem = new Element("relatedItem", Namespaces.MODS);
+        relatedItem.setAttribute("type", type);
+        for (String identifier : identifiers) {
+            relatedItem.addContent(new Element("identifier", Namespaces.MODS).setText(identifier));
+        }
+        return relatedItem;
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.Document;
+import org.jdom.input.SAXBuilder;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RelsExtDiffTest {
+
+    private static final String HEAD = "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"" +
+            " xmlns:rel=\"info:fedora/fedora-system:def/relations-external#\"" +
+            " xmlns:oai=\"http://www.openarchives.org/OAI/2.0/\">" +
+            "<rdf:Description rdf:about=\"info:fedora/test:1\">";
+    private static final String TAIL = "</rdf:Description></rdf:RDF>";
+
+    private static final String COLLECTION = "<rel:isMemberOf rdf:resource=\"info:fedora/collection:test\"/>";
+    private static final String PART_OF = "<rel:isPartOf rdf:resource=\"info:fedora/urn:nbn:de:1234-56\"/>";
+    private static final String ITEM_ID = "<oai:itemID>oai:example.com:test:1</oai:itemID>";
+
+    @Test
+    public void Ignores_order_and_formatting() throws Exception {
+        final RelsExtDiff diff = RelsExtDiff.between(
+                relsExt(COLLECTION + PART_OF + ITEM_ID),
+                relsExt(ITEM_ID + "\n  " + PART_OF + "\n  " + COLLECTION));
+
+        assertTrue(diff.isEmpty());
+    }
+
+    @Test
+    public void Finds_added_and_removed_relationships() throws Exception {
+        final RelsExtDiff diff = RelsExtDiff.between(
+                relsExt(COLLECTION + PART_OF),
+                relsExt(COLLECTION + ITEM_ID));
+
+        assertEquals(Collections.singleton(
+                        "<info:fedora/test:1> <http://www.openarchives.org/OAI/2.0/itemID> \"oai:example.com:test:1\""),
+                diff.getAdded());
+        assertEquals(Collections.singleton(
+                        "<info:fedora/test:1> <info:fedora/fedora-system:def/relations-external#isPartOf> " +
+                                "<info:fedora/urn:nbn:de:1234-56>"),
+                diff.getRemoved());
+    }
+
+    private Document relsExt(String relationships) throws Exception {
+        return new SAXBuilder().build(new StringReader(HEAD + relationships + TAIL));
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.fedoraObjects.AugmentedDatastream;
+import org.purl.sword.server.fedora.fedoraObjects.Datastream;
+import org.purl.sword.server.fedora.fedoraObjects.LocalDatastream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RemoteContentPrefetcherTest {
+
+    private static final String MD5_ABC = "900150983cd24fb0d6963f7d28e17f72";
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                final String path = exchange.getRequestURI().getPath();
+                if (path.startsWith("/missing")) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    final byte[] body = "abc".getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                }
+                exchange.close();
+            }
+        });
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+        dir = File.createTempFile(getClass().getName(), "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        serverThreads.shutdownNow();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void Downloads_remote_content_into_staging_directory() throws Exception {
+        final Map<String, File> files = RemoteContentPrefetcher.prefetch(Arrays.asList(
+                remoteFile("ATT-1", "/a.pdf", MD5_ABC, "MD5"),
+                remoteFile("ATT-2", "/b.pdf", null, null),
+                new METSFile("ATT-3", null, null, "text/plain", null, null, null, true, "file:/local.txt", null)), dir);
+
+        assertEquals(2, files.size());
+        assertEquals("abc", FileUtils.readFileToString(files.get("ATT-1")));
+        assertEquals("abc", FileUtils.readFileToString(files.get("ATT-2")));
+        assertEquals(dir, files.get("ATT-1").getParentFile());
+    }
+
+    @Test
+    public void Reports_failed_downloads_and_removes_fetched_content() throws Exception {
+        try {
+            RemoteContentPrefetcher.prefetch(Arrays.asList(
+                    remoteFile("ATT-1", "/a.pdf", null, null),
+                    remoteFile("ATT-2", "/missing.pdf", null, null),
+                    remoteFile("ATT-3", "/c.pdf", "0000", "MD5")), dir);
+            fail("Expected SWORDException");
+        } catch (SWORDException e) {
+            assertTrue(e.getMessage().contains("2 file(s)"));
+            assertTrue(e.getMessage().contains("ATT-2: GET"));
+            assertTrue(e.getMessage().contains("ATT-3: MD5 checksum mismatch"));
+        }
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void Removes_temporary_file_for_unsupported_checksum_type() throws Exception {
+        try {
+            RemoteContentPrefetcher.prefetch(Collections.singletonList(
+                    remoteFile("ATT-1", "/a.pdf", "0000", "CRC-UNKNOWN")), dir);
+            fail("Expected SWORDException");
+        } catch (SWORDException e) {
+            assertTrue(e.getMessage().contains("1 file(s)"));
+        }
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void Queued_downloads_from_one_host_do_not_occupy_pool_threads() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        final Thread slow = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RemoteContentPrefetcher.prefetch(Arrays.asList(
+                            remoteFile("ATT-1", "/slow/1", null, null),
+                            remoteFile("ATT-2", "/slow/2", null, null),
+                            remoteFile("ATT-3", "/slow/3", null, null),
+                            remoteFile("ATT-4", "/slow/4", null, null),
+                            remoteFile("ATT-5", "/slow/5", null, null)), dir);
+                } catch (Exception ignored) {
+                }
+            }
+        });
+        slow.start();
+        try {
+            final METSFile other = new METSFile("ATT-6", null, null, "application/pdf", null, null, null, true,
+                    "http://localhost:" + server.getAddress().getPort() + "/a.pdf", null);
+            final long start = System.currentTimeMillis();
+            final Map<String, File> files = RemoteContentPrefetcher.prefetch(Collections.singletonList(other), dir);
+
+            assertEquals("abc", FileUtils.readFileToString(files.get("ATT-6")));
+            assertTrue(System.currentTimeMillis() - start < 10000);
+        } finally {
+            release.countDown();
+            slow.join();
+        }
+    }
+
+    @Test
+    public void Interrupted_prefetch_removes_content_of_downloads_finishing_later() throws Exception {
+        final CountDownLatch requested = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requested.countDown();
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                final byte[] body = "abc".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+                exchange.close();
+            }
+        });
+        final Thread interrupted = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RemoteContentPrefetcher.prefetch(Arrays.asList(
+                            remoteFile("ATT-1", "/slow/1", null, null),
+                            remoteFile("ATT-2", "/slow/2", null, null)), dir);
+                } catch (Exception ignored) {
+                }
+            }
+        });
+        interrupted.start();
+        assertTrue(requested.await(10, TimeUnit.SECONDS));
+        interrupted.interrupt();
+        interrupted.join();
+        release.countDown();
+
+        // queued behind the interrupted downloads of the same host
+        final Map<String, File> files = RemoteContentPrefetcher.prefetch(Arrays.asList(
+                remoteFile("ATT-3", "/a.pdf", null, null),
+                remoteFile("ATT-4", "/b.pdf", null, null)), dir);
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (dir.list().length > files.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(2, files.size());
+        assertEquals(2, dir.list().length);
+    }
+
+    @Test
+    public void Container_uses_prefetched_content_as_local_datastream() throws Exception {
+        final METSContainer container = new METSContainer(getClass().getResourceAsStream("/mets_url_file.xml"));
+        final File prefetched = new File(dir, "prefetched");
+        container.setPrefetchedFiles(Collections.singletonMap("ATT-1", prefetched));
+
+        final Datastream ds = ((AugmentedDatastream) container.getAugmentedFileDatastreams().get(0))
+                .getWrappedDatastream();
+
+        assertTrue(ds instanceof LocalDatastream);
+    }
+
+    private METSFile remoteFile(String id, String path, String checksum, String checksumType) {
+        return new METSFile(id, null, null, "application/pdf", null, checksum, checksumType, true,
+                "http://127.0.0.1:" + server.getAddress().getPort() + path, null);
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.junit.Test;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraRepository;
+
+import java.net.ConnectException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class RepositoryConnectionPoolTest {
+
+    private final Connector connector = new Connector();
+
+    @Test
+    public void Reuses_released_connection_for_same_credentials() throws Exception {
+        final RepositoryConnectionPool pool = new RepositoryConnectionPool(4, 60000);
+        final FedoraRepository first = pool.borrow("user", "secret", connector);
+        pool.release("user", "secret", first, true);
+
+        assertSame(first, pool.borrow("user", "secret", connector));
+        assertEquals(1, connector.connects);
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    public void Does_not_share_connections_between_credentials() throws Exception {
+        final RepositoryConnectionPool pool = new RepositoryConnectionPool(4, 60000);
+        final FedoraRepository first = pool.borrow("user", "secret", connector);
+        pool.release("user", "secret", first, true);
+
+        assertNotSame(first, pool.borrow("user", "other", connector));
+        assertEquals(2, connector.connects);
+    }
+
+    @Test
+    public void Discards_only_the_connection_of_a_failed_request() throws Exception {
+        final RepositoryConnectionPool pool = new RepositoryConnectionPool(4, 60000);
+        final FedoraRepository first = pool.borrow("user", "secret", connector);
+        final FedoraRepository second = pool.borrow("user", "secret", connector);
+        pool.release("user", "secret", first, true);
+        pool.release("user", "secret", second, false);
+
+        assertEquals(1, pool.getIdleCount());
+        assertSame(first, pool.borrow("user", "secret", connector));
+        assertEquals(2, connector.connects);
+    }
+
+    @Test
+    public void Discards_idle_connections_after_connection_failure() throws Exception {
+        final RepositoryConnectionPool pool = new RepositoryConnectionPool(4, 60000);
+        pool.release("user", "secret", pool.borrow("user", "secret", connector), true);
+        final SWORDException failure = new SWORDException("Cannot ingest", new ConnectException("Connection refused"));
+
+        assertTrue(RepositoryConnectionPool.isConnectionFailure(failure));
+        assertFalse(RepositoryConnectionPool.isConnectionFailure(new SWORDException("Invalid METS")));
+        pool.invalidate("user", "secret");
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void Evicts_idle_connections() throws Exception {
+        final RepositoryConnectionPool pool = new RepositoryConnectionPool(4, -1);
+        pool.release("user", "secret", pool.borrow("user", "secret", connector), true);
+
+        pool.borrow("user", "secret", connector);
+
+        assertEquals(2, connector.connects);
+        assertEquals(1, pool.getEvictions());
+    }
+
+    @Test
+    public void Keeps_at_most_maximum_number_of_idle_connections() throws Exception {
+        final RepositoryConnectionPool pool = new RepositoryConnectionPool(1, 60000);
+        final FedoraRepository a = pool.borrow("a", "secret", connector);
+        final FedoraRepository b = pool.borrow("b", "secret", connector);
+        pool.release("a", "secret", a, true);
+        pool.release("b", "secret", b, true);
+
+        assertEquals(1, pool.getIdleCount());
+        assertSame(b, pool.borrow("b", "secret", connector));
+    }
+
+    private static class Connector implements RepositoryConnectionPool.Connector {
+        int connects;
+
+        @Override
+        public FedoraRepository connect() throws SWORDException {
+            connects++;
+            return mock(FedoraRepository.class);
+        }
+    }
+
+}
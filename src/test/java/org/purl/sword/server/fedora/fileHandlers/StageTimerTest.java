@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.junit.Test;
+import org.purl.sword.server.fedora.fileHandlers.StageTimer.Stage;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StageTimerTest {
+
+    @Test
+    public void Records_stage_durations() throws Exception {
+        final StageTimer timer = new StageTimer();
+        final long countBefore = StageTimer.getCount(Stage.PARSE);
+
+        final long start = System.nanoTime();
+        Thread.sleep(20);
+        timer.record(Stage.PARSE, start);
+
+        assertTrue(timer.getDuration(Stage.PARSE, TimeUnit.MILLISECONDS) >= 20);
+        assertEquals(-1, timer.getDuration(Stage.INGEST, TimeUnit.MILLISECONDS));
+        assertEquals(countBefore + 1, StageTimer.getCount(Stage.PARSE));
+    }
+
+    @Test
+    public void Lists_stages_in_pipeline_order() {
+        final StageTimer timer = new StageTimer();
+        timer.record(Stage.INGEST, System.nanoTime());
+        timer.record(Stage.PARSE, System.nanoTime());
+
+        assertTrue(timer.toString().matches("PARSE=\\d+ms, INGEST=\\d+ms"));
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StagedDepositTest {
+
+    @Test
+    public void Computes_digest_while_staging() throws Exception {
+        try (StagedDeposit staged = StagedDeposit.stage(IOUtils.toInputStream("abc"))) {
+            assertEquals("900150983cd24fb0d6963f7d28e17f72", staged.getMd5());
+            assertEquals(3, staged.getSize());
+        }
+    }
+
+    @Test
+    public void Staged_content_can_be_read_repeatedly() throws Exception {
+        final byte[] expected = IOUtils.toByteArray(getClass().getResourceAsStream("/mets_ok.xml"));
+        try (StagedDeposit staged = StagedDeposit.stage(getClass().getResourceAsStream("/mets_ok.xml"))) {
+            assertArrayEquals(expected, read(staged));
+            assertArrayEquals(expected, read(staged));
+        }
+    }
+
+    @Test
+    public void Same_MD5_as_METS_container() throws Exception {
+        final String md5 = new METSContainer(getClass().getResourceAsStream("/mets_ok.xml")).getMd5();
+        try (StagedDeposit staged = StagedDeposit.stage(getClass().getResourceAsStream("/mets_ok.xml"))) {
+            assertEquals(md5, staged.getMd5());
+            assertEquals(md5, new METSContainer(staged.openStream()).getMd5());
+        }
+    }
+
+    @Test
+    public void Closing_removes_staging_file() throws Exception {
+        final StagedDeposit staged = StagedDeposit.stage(IOUtils.toInputStream("abc"));
+        assertTrue(staged.getFile().exists());
+        staged.close();
+        assertFalse(staged.getFile().exists());
+    }
+
+    private byte[] read(StagedDeposit staged) throws Exception {
+        try (InputStream in = staged.openStream()) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+}
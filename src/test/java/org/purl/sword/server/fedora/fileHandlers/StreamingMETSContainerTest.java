@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.Element;
+import org.jdom.output.XMLOutputter;
+import org.junit.Test;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.JDomHelper;
+import org.purl.sword.server.fedora.fedoraObjects.Datastream;
+import org.purl.sword.server.fedora.fedoraObjects.DublinCore;
+import org.purl.sword.server.fedora.fedoraObjects.XMLInlineDatastream;
+
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class StreamingMETSContainerTest {
+
+    private static final String[] METS_FILES = {
+            "/mets_add_ds.xml",
+            "/mets_all_references.xml",
+            "/mets_delete_ds.xml",
+            "/mets_download_filegroup.xml",
+            "/mets_file_checksum.xml",
+            "/mets_just_slubinfo.xml",
+            "/mets_just_slubinfo_without_rights.xml",
+            "/mets_missing_mods.xml",
+            "/mets_no_flocat.xml",
+            "/mets_ok.xml",
+            "/mets_relationship_update.xml",
+            "/mets_update.xml",
+            "/mets_url_file.xml",
+            "/mets_with_recordstate.xml"};
+
+    @Test
+    public void Same_MD5_as_DOM_container() throws Exception {
+        for (String metsFile : METS_FILES) {
+            assertEquals(metsFile, dom(metsFile).getMd5(), streaming(metsFile).getMd5());
+        }
+    }
+
+    @Test
+    public void Same_datastreams_as_DOM_container() throws Exception {
+        for (String metsFile : METS_FILES) {
+            assertSameDatastreams(metsFile, dom(metsFile).getDatastreams(), streaming(metsFile).getDatastreams());
+        }
+    }
+
+    @Test
+    public void Same_Dublin_Core_as_DOM_container() throws Exception {
+        for (String metsFile : METS_FILES) {
+            final DublinCore expected = dom(metsFile).getDublinCore();
+            final DublinCore actual = streaming(metsFile).getDublinCore();
+            assertEquals(metsFile, expected.getTitle(), actual.getTitle());
+            assertEquals(metsFile, expected.getIdentifier(), actual.getIdentifier());
+        }
+    }
+
+    @Test
+    public void Same_related_items_as_DOM_container() throws Exception {
+        for (String metsFile : METS_FILES) {
+            final List<Element> expected = dom(metsFile).getModsRelatedItems();
+            final List<Element> actual = streaming(metsFile).getModsRelatedItems();
+            assertEquals(metsFile, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(metsFile, xml(expected.get(i)), xml(actual.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void Same_record_status_and_temporary_files_as_DOM_container() throws Exception {
+        for (String metsFile : METS_FILES) {
+            assertEquals(metsFile, dom(metsFile).getRecordstatus(), streaming(metsFile).getRecordstatus());
+            assertEquals(metsFile, dom(metsFile).getTemporayFiles(), streaming(metsFile).getTemporayFiles());
+        }
+    }
+
+    @Test
+    public void Skips_sections_that_are_not_present() throws Exception {
+        final StreamingMETSContainer container = streaming("/mets_add_ds.xml");
+        assertNull(container.getModsDatastream());
+        assertNull(container.getQucosaXmlDatastream());
+        assertNull(container.getSlubInfoDatastream());
+        assertNotNull(container.getAugmentedFileDatastreams());
+    }
+
+    @Test(expected = SWORDException.class)
+    public void Invalid_file_element_fails_like_DOM_container() throws Exception {
+        streaming("/mets_invalid_file.xml").getDatastreams();
+    }
+
+    private void assertSameDatastreams(String metsFile, List<Datastream> expected, List<Datastream> actual) {
+        assertEquals(metsFile, expected.size(), actual.size());
+        final Iterator<Datastream> it = actual.iterator();
+        for (Datastream e : expected) {
+            final Datastream a = it.next();
+            final String message = metsFile + ": " + e.getId();
+            assertEquals(message, e.getClass(), a.getClass());
+            assertEquals(message, e.getId(), a.getId());
+            assertEquals(message, e.getLabel(), a.getLabel());
+            assertEquals(message, e.getMimeType(), a.getMimeType());
+            assertEquals(message, e.getState(), a.getState());
+            assertEquals(message, e.getDigest(), a.getDigest());
+            assertEquals(message, e.getDigestType(), a.getDigestType());
+            if (e instanceof XMLInlineDatastream) {
+                assertEquals(message,
+                        JDomHelper.makeString(((XMLInlineDatastream) e).toXML()),
+                        JDomHelper.makeString(((XMLInlineDatastream) a).toXML()));
+            }
+        }
+    }
+
+    private String xml(Element element) {
+        return new XMLOutputter().outputString(element);
+    }
+
+    private METSContainer dom(String metsFile) throws Exception {
+        return new METSContainer(getClass().getResourceAsStream(metsFile));
+    }
+
+    private StreamingMETSContainer streaming(String metsFile) throws Exception {
+        return new StreamingMETSContainer(getClass().getResourceAsStream(metsFile));
+    }
+
+}
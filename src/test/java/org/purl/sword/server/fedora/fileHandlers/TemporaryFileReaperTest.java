@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TemporaryFileReaperTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile(getClass().getName(), "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void Deletes_queued_files_in_background() throws Exception {
+        final TemporaryFileReaper reaper = new TemporaryFileReaper(16, 3, 10, null);
+        final File a = file("a", "abc");
+        final File b = file("b", "de");
+
+        reaper.enqueue(Arrays.asList(a, b));
+        reaper.shutdown();
+
+        assertFalse(a.exists());
+        assertFalse(b.exists());
+        assertEquals(5, reaper.getBytesReclaimed());
+        assertEquals(2, reaper.getFilesDeleted());
+        assertEquals(0, reaper.getQueueDepth());
+    }
+
+    @Test
+    public void Deletes_on_calling_thread_when_queue_is_full() throws Exception {
+        final TemporaryFileReaper reaper = new TemporaryFileReaper(0, 3, 10, null);
+        final File a = file("a", "abc");
+
+        reaper.enqueue(Collections.singletonList(a));
+
+        assertFalse(a.exists());
+        assertEquals(0, reaper.getQueueDepth());
+        reaper.shutdown();
+    }
+
+    @Test
+    public void Restores_pending_files_after_restart() throws Exception {
+        final File pendingFile = new File(dir, "pending");
+        final File a = file("a", "abc");
+        FileUtils.writeLines(pendingFile, Collections.singletonList(a.getAbsolutePath()));
+
+        final TemporaryFileReaper reaper = new TemporaryFileReaper(16, 3, 10, pendingFile);
+        reaper.shutdown();
+
+        assertFalse(a.exists());
+        assertTrue(FileUtils.readFileToString(pendingFile).trim().isEmpty());
+    }
+
+    @Test
+    public void Restores_files_queued_but_not_deleted_from_journal() throws Exception {
+        final File pendingFile = new File(dir, "pending");
+        final File a = file("a", "abc");
+        final File b = file("b", "abc");
+        FileUtils.writeLines(pendingFile, Arrays.asList(
+                "+" + a.getAbsolutePath(), "+" + b.getAbsolutePath(), "-" + a.getAbsolutePath()));
+
+        final TemporaryFileReaper reaper = new TemporaryFileReaper(16, 3, 10, pendingFile);
+        reaper.shutdown();
+
+        assertTrue(a.exists());
+        assertFalse(b.exists());
+        assertTrue(FileUtils.readFileToString(pendingFile).trim().isEmpty());
+    }
+
+    @Test
+    public void Sweeps_files_older_than_given_age() throws Exception {
+        final TemporaryFileReaper reaper = new TemporaryFileReaper(16, 3, 10, null);
+        final File old = file("deposit-old.xml", "abc");
+        old.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2));
+        final File recent = file("deposit-recent.xml", "abc");
+
+        assertEquals(1, reaper.sweep(dir, TimeUnit.HOURS.toMillis(1)));
+
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+        reaper.shutdown();
+    }
+
+    @Test
+    public void Sweeps_only_staged_deposit_and_prefetch_files() throws Exception {
+        final File journal = new File(dir, "deposit-reaper.journal");
+        final TemporaryFileReaper reaper = new TemporaryFileReaper(16, 3, 10, journal);
+        final long old = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        final File deposit = file("deposit-1.xml", "abc");
+        final File prefetch = file("prefetch-1.tmp", "abc");
+        final File foreign = file("other-service.dat", "abc");
+        final File journalTmp = file(journal.getName() + ".tmp", "abc");
+        FileUtils.writeStringToFile(journal, "");
+        for (File file : new File[]{deposit, prefetch, foreign, journal, journalTmp}) {
+            file.setLastModified(old);
+        }
+
+        assertEquals(2, reaper.sweep(dir, TimeUnit.HOURS.toMillis(1)));
+
+        assertFalse(deposit.exists());
+        assertFalse(prefetch.exists());
+        assertTrue(foreign.exists());
+        assertTrue(journal.exists());
+        assertTrue(journalTmp.exists());
+        reaper.shutdown();
+    }
+
+    private File file(String name, String content) throws Exception {
+        final File file = new File(dir, name);
+        FileUtils.writeStringToFile(file, content);
+        return file;
+    }
+
+}
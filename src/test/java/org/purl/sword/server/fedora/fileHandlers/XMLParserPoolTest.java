@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jdom.Document;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class XMLParserPoolTest {
+
+    @Test
+    public void Reuses_parser_within_thread() throws Exception {
+        XMLParserPool.build(IOUtils.toInputStream("<a/>"));
+        final long created = XMLParserPool.getCreated();
+        final long acquired = XMLParserPool.getAcquired();
+
+        XMLParserPool.build(IOUtils.toInputStream("<b/>"));
+
+        assertEquals(created, XMLParserPool.getCreated());
+        assertEquals(acquired + 1, XMLParserPool.getAcquired());
+    }
+
+    @Test
+    public void Does_not_resolve_external_entities() throws Exception {
+        final File secret = File.createTempFile(getClass().getName(), ".txt");
+        secret.deleteOnExit();
+        FileUtils.writeStringToFile(secret, "secret");
+
+        final Document document = XMLParserPool.build(IOUtils.toInputStream(
+                "<!DOCTYPE a [<!ENTITY xxe SYSTEM \"" + secret.toURI() + "\">]><a>&xxe;</a>"));
+
+        assertFalse(document.getRootElement().getText().contains("secret"));
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.purl.sword.server.fedora.fileHandlers;
+
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class XPathQueryCacheTest {
+
+    @Before
+    public void clearCache() {
+        XPathQueryCache.clear();
+    }
+
+    @Test
+    public void Returns_same_compiled_query_for_same_expression() throws Exception {
+        final XPathQuery q1 = XPathQueryCache.get("slub:attachment");
+        final XPathQuery q2 = XPathQueryCache.get("slub:attachment");
+        assertSame(q1, q2);
+        assertEquals(1, XPathQueryCache.getMisses());
+        assertEquals(1, XPathQueryCache.getHits());
+    }
+
+    @Test
+    public void Binds_variable_values() throws Exception {
+        final Element rights = new Element("rights", Namespaces.SLUB);
+        rights.addContent(new Element("attachment", Namespaces.SLUB).setAttribute("ref", "ATT-1"));
+        rights.addContent(new Element("attachment", Namespaces.SLUB).setAttribute("ref", "ATT-2'"));
+
+        final XPathQuery query = XPathQueryCache.get("slub:attachment[@ref=$ref]");
+
+        assertEquals("ATT-1", query.selectNode(rights, "ref", "ATT-1").getAttributeValue("ref"));
+        assertEquals("ATT-2'", query.selectNode(rights, "ref", "ATT-2'").getAttributeValue("ref"));
+        assertNull(query.selectNode(rights, "ref", "ATT-3"));
+        assertEquals(1, XPathQueryCache.size());
+    }
+
+    @Test
+    public void Shared_query_can_be_evaluated_by_several_threads() throws Exception {
+        final Element rights = new Element("rights", Namespaces.SLUB);
+        rights.addContent(new Element("attachment", Namespaces.SLUB).setAttribute("ref", "ATT-1"));
+        final XPathQuery query = XPathQueryCache.get("slub:attachment");
+
+        final AtomicReference<Element> result = new AtomicReference<>();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(query.selectNode(rights));
+                } catch (JDOMException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertEquals("ATT-1", result.get().getAttributeValue("ref"));
+        assertEquals("ATT-1", query.selectNode(rights).getAttributeValue("ref"));
+    }
+
+}